@@ -4,13 +4,25 @@
  */
 package pasa.cbentley.testing.ctx;
 
+import java.io.File;
+
 import pasa.cbentley.core.src4.ctx.ACtx;
 import pasa.cbentley.core.src4.ctx.UCtx;
 import pasa.cbentley.core.src4.helpers.StringBBuilder;
 import pasa.cbentley.core.src4.logging.Dctx;
 import pasa.cbentley.core.src4.utils.BitUtils;
 import pasa.cbentley.testing.engine.ITechTesting;
+import pasa.cbentley.testing.engine.PerfBaselineStore;
+import pasa.cbentley.testing.engine.TestCaseBenchmark;
 import pasa.cbentley.testing.engine.TestCaseBentley;
+import pasa.cbentley.testing.engine.TestCoverageIndex;
+import pasa.cbentley.testing.engine.TestCoverageRecorder;
+import pasa.cbentley.testing.engine.TestCtxPool;
+import pasa.cbentley.testing.engine.TestIndex;
+import pasa.cbentley.testing.engine.TestLazyBentley;
+import pasa.cbentley.testing.engine.TestResultCache;
+import pasa.cbentley.testing.engine.TestSuiteBentley;
+import pasa.cbentley.testing.engine.TestTimingStore;
 
 /**
  * Any configuration done in the constructor of a {@link TestCaseBentley} can be ignored when {@link TestCtx}
@@ -25,10 +37,105 @@ import pasa.cbentley.testing.engine.TestCaseBentley;
  */
 public class TestCtx extends ACtx implements ITechTesting {
 
+   /**
+    * Bytes kept at the start of the test output when {@link ITechTesting#CAPTURE_TYPE_1_HEAD_TAIL}
+    */
+   private int               captureHeadSize = 64 * 1024;
+
+   /**
+    * Bytes kept at the end of the test output when {@link ITechTesting#CAPTURE_TYPE_1_HEAD_TAIL}
+    */
+   private int               captureTailSize = 256 * 1024;
+
+   /**
+    * Directory of spill files. null for the default temp directory
+    */
+   private File              captureSpillDir;
+
+   /**
+    * Bytes kept on the heap when {@link ITechTesting#CAPTURE_TYPE_2_SPILL}
+    */
+   private int               captureSpillHeapSize = 64 * 1024;
+
+   private int               captureType     = CAPTURE_TYPE_0_UNBOUNDED;
+
+   /**
+    * File of the {@link TestCoverageIndex}. null when not set
+    */
+   private File              coverageFile;
+
+   /**
+    * Lazily created from {@link TestCtx#coverageFile}
+    */
+   private TestCoverageIndex coverageIndex;
+
+   private TestCtxPool       ctxPool;
+
+   private int               engineFlags;
+
+   /**
+    * Time given to the threads of {@link TestCaseBentley#execute(Runnable...)} to finish at the end of a test method
+    */
+   private long              executorJoinMillis = 30000;
+
+   /**
+    * Lazily created from {@link TestCtx#baselineDir}
+    */
+   private PerfBaselineStore baselineStore;
+
+   /**
+    * Directory of performance baselines
+    */
+   private File              baselineDir     = new File("perf-baselines");
+
+   /**
+    * When true, {@link TestSuiteBentley} creates test instances only when they are run
+    */
+   private boolean           isLazyTests;
+
+   private int               parallelMode    = PARALLEL_0_NONE;
+
+   /**
+    * File of the {@link TestResultCache}. null when results are not cached
+    */
+   private File              resultCacheFile;
+
+   /**
+    * Number of test methods kept by the {@link TestResultCache}
+    */
+   private int               resultCacheMaxEntries = 10000;
+
+   /**
+    * Lazily created from {@link TestCtx#resultCacheFile}
+    */
+   private TestResultCache   resultCache;
+
+   /**
+    * Number of worker threads of a parallel {@link TestSuiteBentley}
+    */
+   private int               parallelThreads = Runtime.getRuntime().availableProcessors();
+
    protected TestCaseBentley testCaseBentley;
 
+   private TestIndex         testIndex;
+
    private int               testFlags;
 
+   /**
+    * Millis after which a test method is failed. 0 for no timeout
+    */
+   private long              testTimeoutMillis;
+
+   /**
+    * File of the {@link TestTimingStore}. null when durations are not recorded
+    */
+   private File              timingFile;
+
+   /**
+    * Lazily created from {@link TestCtx#timingFile}
+    */
+   private TestTimingStore   timingStore;
+
    public TestCtx(UCtx uc) {
       super(uc);
 
@@ -36,6 +143,36 @@ public class TestCtx extends ACtx implements ITechTesting {
       toDLog().pInit("Created", this, TestCtx.class, "TestCtx", LVL_05_FINE, true);
    }
 
+   /**
+    * Copies flags and settings of src. Used to create the {@link TestCtx} of a worker thread and to reset a pooled one.
+    * @param src
+    */
+   public void copyConfigFrom(TestCtx src) {
+      this.testFlags = src.testFlags;
+      this.captureType = src.captureType;
+      this.captureHeadSize = src.captureHeadSize;
+      this.captureTailSize = src.captureTailSize;
+      this.captureSpillHeapSize = src.captureSpillHeapSize;
+      this.captureSpillDir = src.captureSpillDir;
+      this.parallelMode = src.parallelMode;
+      this.parallelThreads = src.parallelThreads;
+      this.isLazyTests = src.isLazyTests;
+      this.testIndex = src.testIndex;
+      this.ctxPool = src.ctxPool;
+      this.engineFlags = src.engineFlags;
+      this.executorJoinMillis = src.executorJoinMillis;
+      this.testTimeoutMillis = src.testTimeoutMillis;
+      this.timingFile = src.timingFile;
+      this.timingStore = src.getTimingStore();
+      this.resultCacheFile = src.resultCacheFile;
+      this.resultCacheMaxEntries = src.resultCacheMaxEntries;
+      this.resultCache = src.getResultCache();
+      this.coverageFile = src.coverageFile;
+      this.coverageIndex = src.getCoverageIndex();
+      this.baselineDir = src.baselineDir;
+      this.baselineStore = src.getBaselineStore();
+   }
+
    public String debugFlags() {
       return debugFlags(testFlags);
    }
@@ -48,26 +185,295 @@ public class TestCtx extends ACtx implements ITechTesting {
       sb.append(BitUtils.hasFlag(flags, TEST_FLAG_04_HIDE_OUT_FAILURES) ? " Hide_Sysout_on_Failures" : "");
       sb.append(BitUtils.hasFlag(flags, TEST_FLAG_05_SHOW_OUT_INIT) ? " Show_Constructor_Statements" : "");
       sb.append(BitUtils.hasFlag(flags, TEST_FLAG_06_TEAR_DOWN_RESULT) ? " Show_TearDown_Result" : "");
+      sb.append(BitUtils.hasFlag(flags, TEST_FLAG_07_PRINT_METRICS) ? " Print_Metrics" : "");
       sb.append(BitUtils.hasFlag(flags, TEST_FLAG_08_DEBUG_METHOD_NAMES) ? " Show_Method_Names" : "");
       return sb.toString();
    }
 
+   /**
+    * Store of the baselines used by {@link TestCaseBenchmark}
+    * @return
+    */
+   public synchronized PerfBaselineStore getBaselineStore() {
+      if (baselineStore == null) {
+         baselineStore = new PerfBaselineStore(baselineDir);
+      }
+      return baselineStore;
+   }
+
+   public int getCaptureHeadSize() {
+      return captureHeadSize;
+   }
+
+   public int getCaptureTailSize() {
+      return captureTailSize;
+   }
+
+   public File getCaptureSpillDir() {
+      return captureSpillDir;
+   }
+
+   public int getCaptureSpillHeapSize() {
+      return captureSpillHeapSize;
+   }
+
+   /**
+    * How the output of a test method is captured when {@link ITechTesting#TEST_FLAG_03_HIDE_OUT_SUCCESSES} is set
+    * <li> {@link ITechTesting#CAPTURE_TYPE_0_UNBOUNDED}
+    * <li> {@link ITechTesting#CAPTURE_TYPE_1_HEAD_TAIL}
+    * <li> {@link ITechTesting#CAPTURE_TYPE_2_SPILL}
+    * @return
+    */
+   public int getCaptureType() {
+      return captureType;
+   }
+
+   /**
+    * Pool of {@link UCtx} and {@link TestCtx} for the tests created by a {@link TestSuiteBentley}
+    * @return null if tests create their own
+    */
+   public TestCtxPool getCtxPool() {
+      return ctxPool;
+   }
+
    public int getCtxID() {
       return 21;
    }
 
+   /**
+    * <li> {@link ITechTesting#PARALLEL_0_NONE}
+    * <li> {@link ITechTesting#PARALLEL_1_CLASS}
+    * <li> {@link ITechTesting#PARALLEL_2_METHOD}
+    * @return
+    */
+   public int getParallelMode() {
+      return parallelMode;
+   }
+
+   public int getParallelThreads() {
+      return parallelThreads;
+   }
+
+   /**
+    * Cache of the passed test methods, shared by the worker contexts
+    * @return null when {@link TestCtx#setResultCache(File, int)} was not set
+    */
+   public synchronized TestResultCache getResultCache() {
+      if (resultCache == null && resultCacheFile != null) {
+         resultCache = new TestResultCache(resultCacheFile, resultCacheMaxEntries);
+      }
+      return resultCache;
+   }
+
    public int getTestFlags() {
       return this.testFlags;
    }
 
+   /**
+    * Index of the classes loaded by each test method, shared by the worker contexts
+    * @return null when {@link TestCtx#setCoverageFile(File)} was not set
+    */
+   public synchronized TestCoverageIndex getCoverageIndex() {
+      if (coverageIndex == null && coverageFile != null) {
+         coverageIndex = new TestCoverageIndex(coverageFile);
+      }
+      return coverageIndex;
+   }
+
+   public int getEngineFlags() {
+      return engineFlags;
+   }
+
+   /**
+    * 
+    * @return millis waited for the threads of a test method before failing it
+    */
+   public long getExecutorJoinMillis() {
+      return executorJoinMillis;
+   }
+
+   /**
+    * 
+    * @return 0 when test methods have no timeout
+    */
+   public long getTestTimeoutMillis() {
+      return testTimeoutMillis;
+   }
+
+   /**
+    * Store of the durations of test methods, shared by the worker contexts
+    * @return null when {@link TestCtx#setTimingFile(File)} was not set
+    */
+   public synchronized TestTimingStore getTimingStore() {
+      if (timingStore == null && timingFile != null) {
+         timingStore = new TestTimingStore(timingFile);
+      }
+      return timingStore;
+   }
+
+   /**
+    * When true, a {@link TestSuiteBentley} adds {@link TestLazyBentley} placeholders.
+    * Each {@link TestCaseBentley} is created just before it runs and released after.
+    * @return
+    */
+   public boolean isLazyTests() {
+      return isLazyTests;
+   }
+
+   /**
+    * Precomputed index used by {@link TestSuiteBentley} instead of reflection
+    * @return null if none
+    */
+   public TestIndex getTestIndex() {
+      return testIndex;
+   }
+
+   public boolean hasEngineFlag(int flag) {
+      return BitUtils.hasFlag(engineFlags, flag);
+   }
+
    public boolean hasTestFlag(int flag) {
       return BitUtils.hasFlag(testFlags, flag);
    }
 
+   /**
+    * 
+    * @param dir directory of the baseline files of {@link TestCaseBenchmark}
+    */
+   public synchronized void setBaselineDir(File dir) {
+      this.baselineDir = dir;
+      this.baselineStore = null;
+   }
+
+   /**
+    * Sets a fixed byte budget per test method.
+    * Switches to {@link ITechTesting#CAPTURE_TYPE_1_HEAD_TAIL}
+    * @param headSize bytes kept at the start
+    * @param tailSize bytes kept at the end
+    */
+   public void setCaptureHeadTail(int headSize, int tailSize) {
+      this.captureHeadSize = headSize;
+      this.captureTailSize = tailSize;
+      this.captureType = CAPTURE_TYPE_1_HEAD_TAIL;
+   }
+
+   /**
+    * Keeps heapSize bytes on the heap and spills the rest of the test output to a temporary file.
+    * Switches to {@link ITechTesting#CAPTURE_TYPE_2_SPILL}
+    * @param heapSize
+    * @param dir directory of the temporary files. null for the default one
+    */
+   public void setCaptureSpill(int heapSize, File dir) {
+      this.captureSpillHeapSize = heapSize;
+      this.captureSpillDir = dir;
+      this.captureType = CAPTURE_TYPE_2_SPILL;
+   }
+
+   public void setCaptureType(int captureType) {
+      this.captureType = captureType;
+   }
+
+   /**
+    * Tests created by a {@link TestSuiteBentley} reuse the {@link UCtx} and {@link TestCtx} of tests of the same class that finished.
+    * <br>
+    * Best used with {@link TestCtx#setLazyTests(boolean)}. Eagerly created tests all exist before the first one finishes.
+    * @param ctxPool null to disable
+    */
+   public void setCtxPool(TestCtxPool ctxPool) {
+      this.ctxPool = ctxPool;
+   }
+
+   /**
+    * Called by {@link TestCtxPool} before this {@link TestCtx} is given to a new test.
+    * <br>
+    * Settings changed by the previous test are set back to those of initial.
+    * @param initial copy of the settings it had when created
+    */
+   public void resetForReuse(TestCtx initial) {
+      copyConfigFrom(initial);
+      this.testCaseBentley = null;
+   }
+
+   /**
+    * Index written by {@link TestCoverageRecorder}, used by {@link TestSuiteBentley#createAffectedSuite(java.util.Collection)}
+    * @param file null to disable
+    */
+   public synchronized void setCoverageFile(File file) {
+      this.coverageFile = file;
+      this.coverageIndex = null;
+   }
+
+   /**
+    * 
+    * @param flag {@link ITechTesting#ENGINE_FLAG_01_UPDATE_BASELINES}, {@link ITechTesting#ENGINE_FLAG_02_CHECK_THREAD_LEAKS}, {@link ITechTesting#ENGINE_FLAG_03_WATCHDOG}, {@link ITechTesting#ENGINE_FLAG_04_FAILED_FIRST}, {@link ITechTesting#ENGINE_FLAG_05_FORCE_FULL_RUN}, {@link ITechTesting#ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS}
+    * @param v
+    */
+   public void setEngineFlag(int flag, boolean v) {
+      engineFlags = BitUtils.setFlag(engineFlags, flag, v);
+   }
+
+   public void setExecutorJoinMillis(long executorJoinMillis) {
+      this.executorJoinMillis = executorJoinMillis;
+   }
+
+   public void setLazyTests(boolean isLazyTests) {
+      this.isLazyTests = isLazyTests;
+   }
+
+   /**
+    * 
+    * @param parallelMode {@link ITechTesting#PARALLEL_0_NONE}, {@link ITechTesting#PARALLEL_1_CLASS} or {@link ITechTesting#PARALLEL_2_METHOD}
+    * @param threads number of worker threads
+    */
+   public void setParallel(int parallelMode, int threads) {
+      if (threads <= 0) {
+         throw new IllegalArgumentException("threads=" + threads);
+      }
+      this.parallelMode = parallelMode;
+      this.parallelThreads = threads;
+   }
+
+   /**
+    * {@link TestCaseBentley} skips the test methods that passed with the same code, resources and flags. See {@link TestResultCache}
+    * @param file null to disable
+    * @param maxEntries number of test methods kept, least recently used evicted first
+    */
+   public synchronized void setResultCache(File file, int maxEntries) {
+      if (maxEntries <= 0) {
+         throw new IllegalArgumentException("maxEntries=" + maxEntries);
+      }
+      this.resultCacheFile = file;
+      this.resultCacheMaxEntries = maxEntries;
+      this.resultCache = null;
+   }
+
    public void setTestCase(TestCaseBentley testCaseBentley) {
       this.testCaseBentley = testCaseBentley;
    }
 
+   public void setTestIndex(TestIndex testIndex) {
+      this.testIndex = testIndex;
+   }
+
+   /**
+    * Test methods running longer than millis are failed with a dump of all thread stacks in their output.
+    * <br>
+    * The set up, test and tear down of each method then run on a separate body thread, abandoned on timeout.
+    * @param millis 0 for no timeout
+    */
+   public void setTestTimeoutMillis(long millis) {
+      this.testTimeoutMillis = millis;
+   }
+
+   /**
+    * {@link TestSuiteBentley} records the duration of each test method in file and uses it to order the next runs
+    * @param file null to disable
+    */
+   public synchronized void setTimingFile(File file) {
+      this.timingFile = file;
+      this.timingStore = null;
+   }
+
    public void setTestFlag(int flag, boolean v) {
       testFlags = BitUtils.setFlag(testFlags, flag, v);
    }
@@ -90,6 +496,48 @@ public class TestCtx extends ACtx implements ITechTesting {
    private void toStringPrivate(Dctx dc) {
       String str = debugFlags(testFlags);
       dc.appendWithSpace(str);
+      dc.appendVarWithSpace("captureType", captureType);
+      if (captureType == CAPTURE_TYPE_1_HEAD_TAIL) {
+         dc.appendVarWithSpace("captureHeadSize", captureHeadSize);
+         dc.appendVarWithSpace("captureTailSize", captureTailSize);
+      } else if (captureType == CAPTURE_TYPE_2_SPILL) {
+         dc.appendVarWithSpace("captureSpillHeapSize", captureSpillHeapSize);
+      }
+      dc.appendVarWithSpace("isLazyTests", isLazyTests);
+      if (hasEngineFlag(ENGINE_FLAG_01_UPDATE_BASELINES)) {
+         dc.appendWithSpace("Update_Baselines");
+      }
+      if (hasEngineFlag(ENGINE_FLAG_02_CHECK_THREAD_LEAKS)) {
+         dc.appendWithSpace("Check_Thread_Leaks");
+      }
+      if (hasEngineFlag(ENGINE_FLAG_03_WATCHDOG)) {
+         dc.appendWithSpace("Watchdog");
+      }
+      if (hasEngineFlag(ENGINE_FLAG_04_FAILED_FIRST)) {
+         dc.appendWithSpace("Failed_First");
+      }
+      if (hasEngineFlag(ENGINE_FLAG_05_FORCE_FULL_RUN)) {
+         dc.appendWithSpace("Force_Full_Run");
+      }
+      if (hasEngineFlag(ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS)) {
+         dc.appendWithSpace("Skip_Alloc_Asserts");
+      }
+      if (resultCacheFile != null) {
+         dc.appendWithSpace("resultCacheFile=" + resultCacheFile);
+      }
+      if (coverageFile != null) {
+         dc.appendWithSpace("coverageFile=" + coverageFile);
+      }
+      if (timingFile != null) {
+         dc.appendWithSpace("timingFile=" + timingFile);
+      }
+      if (testTimeoutMillis > 0) {
+         dc.appendVarWithSpace("testTimeoutMillis", testTimeoutMillis);
+      }
+      if (parallelMode != PARALLEL_0_NONE) {
+         dc.appendVarWithSpace("parallelMode", parallelMode);
+         dc.appendVarWithSpace("parallelThreads", parallelThreads);
+      }
    }
 
    //#enddebug
@@ -0,0 +1,140 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures the bytes allocated by the current thread with {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)}.
+ * <br>
+ * <br>
+ * {@link AllocationMeter#measureBytesPerOp(Runnable, int, int)}
+ * <li> runs the operation warmup times so that JIT compilation and class initialization allocations are done
+ * <li> measures ops calls, several rounds, keeping the lowest. A round may include an unrelated allocation
+ * <li> subtracts the cost of reading the counter itself
+ * <br>
+ * <br>
+ * Counting is a JVM wide setting. When it is disabled, it is enabled during measures only
+ * and disabled again when the last concurrent measure ends.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class AllocationMeter {
+
+   /**
+    * Number of calls of an operation before it is measured
+    */
+   public static final int                         OPS_DEFAULT    = 1000;
+
+   public static final int                         ROUNDS         = 3;
+
+   public static final int                         WARMUP_DEFAULT = 20000;
+
+   /**
+    * Number of measures running. Guarded by the class lock
+    */
+   private static int                              measures;
+
+   /**
+    * True when the first of the running measures enabled counting. Guarded by the class lock
+    */
+   private static boolean                          isEnabledByMeasure;
+
+   private final com.sun.management.ThreadMXBean bean;
+
+   public AllocationMeter() {
+      ThreadMXBean b = ManagementFactory.getThreadMXBean();
+      com.sun.management.ThreadMXBean sunBean = null;
+      if (b instanceof com.sun.management.ThreadMXBean) {
+         sunBean = (com.sun.management.ThreadMXBean) b;
+         if (!sunBean.isThreadAllocatedMemorySupported()) {
+            sunBean = null;
+         }
+      }
+      this.bean = sunBean;
+   }
+
+   /**
+    * Enables counting if needed, until the matching {@link AllocationMeter#endMeasure()}.
+    * <br>
+    * Needed before {@link AllocationMeter#getAllocatedBytes()}. {@link AllocationMeter#measureBytesPerOp(Runnable, int, int)} calls it
+    */
+   void beginMeasure() {
+      synchronized (AllocationMeter.class) {
+         if (measures++ == 0 && !bean.isThreadAllocatedMemoryEnabled()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+            isEnabledByMeasure = true;
+         }
+      }
+   }
+
+   /**
+    * Disables counting when the last measure ends and counting was enabled by a measure
+    */
+   void endMeasure() {
+      synchronized (AllocationMeter.class) {
+         if (--measures == 0 && isEnabledByMeasure) {
+            bean.setThreadAllocatedMemoryEnabled(false);
+            isEnabledByMeasure = false;
+         }
+      }
+   }
+
+   /**
+    * 
+    * @return bytes allocated by the current thread since it started. -1 when counting is disabled
+    */
+   public long getAllocatedBytes() {
+      return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+   }
+
+   /**
+    * False when the JVM cannot count allocations per thread
+    * @return
+    */
+   public boolean isSupported() {
+      return bean != null;
+   }
+
+   /**
+    * 
+    * @param run
+    * @param warmup number of calls before measuring
+    * @param ops number of calls measured in each round
+    * @return bytes allocated per call of run
+    */
+   public double measureBytesPerOp(Runnable run, int warmup, int ops) {
+      if (!isSupported()) {
+         throw new IllegalStateException("Thread allocation counting is not supported by this JVM");
+      }
+      beginMeasure();
+      try {
+         //bytes allocated by a pair of counter reads
+         long overhead = Long.MAX_VALUE;
+         for (int i = 0; i < 10; i++) {
+            long before = getAllocatedBytes();
+            long after = getAllocatedBytes();
+            overhead = Math.min(overhead, after - before);
+         }
+         for (int i = 0; i < warmup; i++) {
+            run.run();
+         }
+         long min = Long.MAX_VALUE;
+         for (int r = 0; r < ROUNDS; r++) {
+            long before = getAllocatedBytes();
+            for (int i = 0; i < ops; i++) {
+               run.run();
+            }
+            long after = getAllocatedBytes();
+            min = Math.min(min, Math.max(0, after - before - overhead));
+         }
+         return (double) min / ops;
+      } finally {
+         endMeasure();
+      }
+   }
+}
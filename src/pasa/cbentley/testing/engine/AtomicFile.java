@@ -0,0 +1,84 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Writes a store file through a temporary file renamed over it, so that a crash or a concurrent run
+ * never leaves it half written.
+ * <br>
+ * <li> {@link AtomicFile#startWrite()} opens a temporary file next to the file
+ * <li> {@link AtomicFile#finishWrite(Writer)} closes it and renames it over the file
+ * <li> {@link AtomicFile#failWrite(Writer)} closes it and deletes it
+ *
+ * @author Charles Bentley
+ *
+ */
+class AtomicFile {
+
+   private final File file;
+
+   private File       tmp;
+
+   AtomicFile(File file) {
+      this.file = file.getAbsoluteFile();
+   }
+
+   /**
+    * Closes and deletes the temporary file. The file is unchanged
+    * @param w
+    */
+   void failWrite(Writer w) {
+      try {
+         w.close();
+      } catch (IOException e) {
+         //deleted anyways
+      }
+      tmp.delete();
+      tmp = null;
+   }
+
+   /**
+    * Closes the temporary file and renames it over the file
+    * @param w writer returned by {@link AtomicFile#startWrite()}
+    * @throws IOException the file is unchanged
+    */
+   void finishWrite(Writer w) throws IOException {
+      try {
+         w.close();
+         try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+         } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+         }
+      } finally {
+         tmp.delete();
+         tmp = null;
+      }
+   }
+
+   /**
+    * Creates the directory if needed and opens a temporary file in it
+    * @return UTF-8 writer on the temporary file
+    * @throws IOException
+    */
+   Writer startWrite() throws IOException {
+      File dir = file.getParentFile();
+      if (!dir.exists()) {
+         dir.mkdirs();
+      }
+      tmp = File.createTempFile(file.getName(), ".tmp", dir);
+      return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+   }
+}
@@ -0,0 +1,168 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.Arrays;
+
+import pasa.cbentley.core.src4.ctx.ObjectU;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.core.src4.logging.Dctx;
+
+/**
+ * Measurement of a {@link TestCaseBenchmark} operation.
+ * <br>
+ * One sample per measurement iteration, in nanoseconds per operation.
+ * <br>
+ * A measurement has few iterations, so the spread is given as min, max and a 99% confidence interval of the mean.
+ * Percentiles of so few samples would only repeat the extremes.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class BenchmarkResult extends ObjectU {
+
+   /**
+    * Rounds to 1 decimal
+    * @param v
+    * @return
+    */
+   static String format(double v) {
+      return String.valueOf(Math.round(v * 10) / 10.0);
+   }
+
+   /**
+    * Two sided 99% Student t critical values, index is degrees of freedom minus 1
+    */
+   private static final double[] T_99 = { 63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250, 3.169, 3.106, 3.055, 3.012, 2.977, 2.947, 2.921, 2.898,
+         2.878, 2.861, 2.845, 2.831, 2.819, 2.807, 2.797, 2.787, 2.779, 2.771, 2.763, 2.756, 2.750 };
+
+   private final String          name;
+
+   private final long            opsPerIteration;
+
+   /**
+    * Nanos per op of each iteration, sorted
+    */
+   private final double[]        samples;
+
+   /**
+    * 
+    * @param uc
+    * @param name
+    * @param opsPerIteration
+    * @param samples nanos per operation of each measurement iteration
+    */
+   public BenchmarkResult(UCtx uc, String name, long opsPerIteration, double[] samples) {
+      super(uc);
+      if (samples.length == 0) {
+         throw new IllegalArgumentException("No samples");
+      }
+      this.name = name;
+      this.opsPerIteration = opsPerIteration;
+      this.samples = samples.clone();
+      Arrays.sort(this.samples);
+   }
+
+   public double getMaxNanosPerOp() {
+      return samples[samples.length - 1];
+   }
+
+   /**
+    * Mean nanos per operation
+    * @return
+    */
+   public double getMeanNanosPerOp() {
+      double sum = 0;
+      for (int i = 0; i < samples.length; i++) {
+         sum += samples[i];
+      }
+      return sum / samples.length;
+   }
+
+   public double getMinNanosPerOp() {
+      return samples[0];
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public long getOpsPerIteration() {
+      return opsPerIteration;
+   }
+
+   public double getOpsPerSecond() {
+      return 1e9 / getMeanNanosPerOp();
+   }
+
+   /**
+    * Half width of the 99% confidence interval of {@link BenchmarkResult#getMeanNanosPerOp()}
+    * @return 0 with a single sample
+    */
+   public double getConfidenceNanosPerOp() {
+      int df = samples.length - 1;
+      if (df < 1) {
+         return 0;
+      }
+      double t = df <= T_99.length ? T_99[df - 1] : 2.576;
+      return t * getStdDevNanosPerOp() / Math.sqrt(samples.length);
+   }
+
+   public int getSampleCount() {
+      return samples.length;
+   }
+
+   /**
+    * Copy of the samples, sorted
+    * @return
+    */
+   public double[] getSamples() {
+      return samples.clone();
+   }
+
+   /**
+    * Sample standard deviation of nanos per operation
+    * @return
+    */
+   public double getStdDevNanosPerOp() {
+      if (samples.length < 2) {
+         return 0;
+      }
+      double mean = getMeanNanosPerOp();
+      double sum = 0;
+      for (int i = 0; i < samples.length; i++) {
+         double d = samples[i] - mean;
+         sum += d * d;
+      }
+      return Math.sqrt(sum / (samples.length - 1));
+   }
+
+   //#mdebug
+   public void toString(Dctx dc) {
+      dc.root(this, BenchmarkResult.class, "@line5");
+      toStringPrivate(dc);
+      super.toString(dc.sup());
+      dc.nl();
+      dc.append("ns/op mean=" + format(getMeanNanosPerOp()) + " +-" + format(getConfidenceNanosPerOp()) + " (99% ci) stddev=" + format(getStdDevNanosPerOp()));
+      dc.nl();
+      dc.append("ns/op min=" + format(getMinNanosPerOp()) + " max=" + format(getMaxNanosPerOp()));
+      dc.nl();
+      dc.appendVarWithSpace("iterations", samples.length);
+      dc.append(" opsPerIteration=" + opsPerIteration);
+   }
+
+   private void toStringPrivate(Dctx dc) {
+      dc.append(" " + name + " ops/s=" + format(getOpsPerSecond()));
+   }
+
+   public void toString1Line(Dctx dc) {
+      dc.root1Line(this, BenchmarkResult.class);
+      toStringPrivate(dc);
+      super.toString1Line(dc.sup1Line());
+   }
+
+   //#enddebug
+
+}
@@ -0,0 +1,67 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+/**
+ * Sink for values computed by a benchmark operation.
+ * <br>
+ * Consuming a value prevents the JIT from removing the code computing it as dead code.
+ * <br>
+ * Each method compares the value with volatile fields. The comparison can never succeed but
+ * the compiler cannot prove it.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class Blackhole {
+
+   private volatile boolean b1 = false, b2 = true;
+
+   private volatile double  d1 = 1, d2 = 2;
+
+   private volatile int     i1 = 1, i2 = 2;
+
+   private volatile long    l1 = 1, l2 = 2;
+
+   /**
+    * Never equal to a consumed object
+    */
+   private volatile Object  o1 = new Object();
+
+   /**
+    * Written only when the impossible happens
+    */
+   public volatile Object   sink;
+
+   public final void consume(boolean v) {
+      if (v == b1 & v == b2) {
+         sink = this;
+      }
+   }
+
+   public final void consume(double v) {
+      if (v == d1 & v == d2) {
+         sink = this;
+      }
+   }
+
+   public final void consume(int v) {
+      if (v == i1 & v == i2) {
+         sink = this;
+      }
+   }
+
+   public final void consume(long v) {
+      if (v == l1 & v == l2) {
+         sink = this;
+      }
+   }
+
+   public final void consume(Object v) {
+      if (v == o1) {
+         sink = v;
+      }
+   }
+}
@@ -0,0 +1,247 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process wide cache of the bytecode hash of test classes. Used by {@link TestResultCache}.
+ * <br>
+ * The hash of a class covers the class files of the class, its super classes and, transitively, of the classes named
+ * in their constant pools. Classes of the JDK and of JUnit are left out, as well as classes the loader cannot find as a resource.
+ * <br>
+ * Classes only reached by reflection from a string are not seen.
+ * <br>
+ * Class files are read and parsed once per loader. Cleared with {@link BytecodeHasher#clear()} when classes are reloaded.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class BytecodeHasher {
+
+   /**
+    * Digest and dependencies of one class file
+    */
+   private static class ClassFile {
+
+      final String[] deps;
+
+      final byte[]   digest;
+
+      ClassFile(byte[] digest, String[] deps) {
+         this.digest = digest;
+         this.deps = deps;
+      }
+   }
+
+   private static final ConcurrentHashMap<ClassLoader, Map<String, ClassFile>> files   = new ConcurrentHashMap<ClassLoader, Map<String, ClassFile>>();
+
+   private static final ConcurrentHashMap<Class<?>, String>                     hashes  = new ConcurrentHashMap<Class<?>, String>();
+
+   private static final String[]                                              IGNORED = { "java/", "javax/", "jdk/", "sun/", "com/sun/", "junit/", "org/junit/", "org/hamcrest/" };
+
+   public static void clear() {
+      hashes.clear();
+      files.clear();
+   }
+
+   /**
+    * Reads and parses the class file of name
+    * @param loader
+    * @param name internal name, with slashes
+    * @return null when the loader has no class file for name
+    */
+   private static ClassFile readClassFile(ClassLoader loader, String name) {
+      InputStream is = loader.getResourceAsStream(name + ".class");
+      if (is == null) {
+         return null;
+      }
+      try {
+         try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) != -1) {
+               bos.write(buf, 0, n);
+            }
+            byte[] bytes = bos.toByteArray();
+            return new ClassFile(sha1().digest(bytes), readClassNames(bytes));
+         } finally {
+            is.close();
+         }
+      } catch (IOException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Names of the CONSTANT_Class entries of a class file. Array names are reduced to their element class
+    * @param bytes
+    * @return
+    * @throws IOException when the class file is malformed
+    */
+   private static String[] readClassNames(byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readInt() != 0xCAFEBABE) {
+         throw new IOException("Not a class file");
+      }
+      in.readUnsignedShort();
+      in.readUnsignedShort();
+      int count = in.readUnsignedShort();
+      String[] utf8 = new String[count];
+      int[] classIndexes = new int[count];
+      int numClasses = 0;
+      for (int i = 1; i < count; i++) {
+         int tag = in.readUnsignedByte();
+         switch (tag) {
+            case 1:
+               utf8[i] = in.readUTF();
+               break;
+            case 7:
+               classIndexes[numClasses++] = in.readUnsignedShort();
+               break;
+            case 8:
+            case 16:
+            case 19:
+            case 20:
+               in.readUnsignedShort();
+               break;
+            case 15:
+               in.readUnsignedByte();
+               in.readUnsignedShort();
+               break;
+            case 3:
+            case 4:
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+            case 17:
+            case 18:
+               in.readInt();
+               break;
+            case 5:
+            case 6:
+               in.readLong();
+               i++;
+               break;
+            default:
+               throw new IOException("Unknown constant pool tag " + tag);
+         }
+      }
+      List<String> names = new ArrayList<String>(numClasses);
+      for (int i = 0; i < numClasses; i++) {
+         String name = utf8[classIndexes[i]];
+         if (name == null) {
+            continue;
+         }
+         if (name.startsWith("[")) {
+            int l = name.indexOf('L');
+            if (l < 0) {
+               continue;
+            }
+            name = name.substring(l + 1, name.length() - 1);
+         }
+         names.add(name);
+      }
+      return names.toArray(new String[names.size()]);
+   }
+
+   /**
+    * Hex SHA-1 over the class files of cl and of its dependencies
+    * @param cl
+    * @return null when cl has no class file, as for classes of the boot loader
+    */
+   public static String hash(Class<?> cl) {
+      String hash = hashes.get(cl);
+      if (hash != null) {
+         return hash;
+      }
+      ClassLoader loader = cl.getClassLoader();
+      if (loader == null) {
+         return null;
+      }
+      Map<String, ClassFile> loaderFiles = files.get(loader);
+      if (loaderFiles == null) {
+         files.putIfAbsent(loader, new HashMap<String, ClassFile>());
+         loaderFiles = files.get(loader);
+      }
+      //sorted so that the hash does not depend on the walk order
+      TreeMap<String, byte[]> closure = new TreeMap<String, byte[]>();
+      synchronized (loaderFiles) {
+         List<String> todo = new ArrayList<String>();
+         todo.add(cl.getName().replace('.', '/'));
+         while (!todo.isEmpty()) {
+            String name = todo.remove(todo.size() - 1);
+            if (closure.containsKey(name) || isIgnored(name)) {
+               continue;
+            }
+            ClassFile file = loaderFiles.get(name);
+            if (file == null && !loaderFiles.containsKey(name)) {
+               file = readClassFile(loader, name);
+               loaderFiles.put(name, file);
+            }
+            if (file == null) {
+               continue;
+            }
+            closure.put(name, file.digest);
+            for (String dep : file.deps) {
+               todo.add(dep);
+            }
+         }
+      }
+      if (closure.isEmpty()) {
+         return null;
+      }
+      MessageDigest md = sha1();
+      for (Map.Entry<String, byte[]> e : closure.entrySet()) {
+         md.update(e.getKey().getBytes());
+         md.update(e.getValue());
+      }
+      hash = toHex(md.digest());
+      hashes.put(cl, hash);
+      return hash;
+   }
+
+   private static boolean isIgnored(String name) {
+      for (int i = 0; i < IGNORED.length; i++) {
+         if (name.startsWith(IGNORED[i])) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   public static MessageDigest sha1() {
+      try {
+         return MessageDigest.getInstance("SHA-1");
+      } catch (NoSuchAlgorithmException e) {
+         //every JVM has SHA-1
+         throw new IllegalStateException(e);
+      }
+   }
+
+   public static String toHex(byte[] bytes) {
+      StringBuilder sb = new StringBuilder(bytes.length * 2);
+      for (int i = 0; i < bytes.length; i++) {
+         int b = bytes[i] & 0xFF;
+         sb.append(Character.forDigit(b >> 4, 16));
+         sb.append(Character.forDigit(b & 0xF, 16));
+      }
+      return sb.toString();
+   }
+}
@@ -0,0 +1,182 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Unbounded {@link ICaptureBuffer} storing bytes in growable chunks.
+ * <br>
+ * Unlike a {@link java.io.ByteArrayOutputStream}, growing never copies already captured bytes.
+ * Chunk sizes double from {@link CaptureBufferChunked#CHUNK_SIZE_MIN} up to {@link CaptureBufferChunked#CHUNK_SIZE_MAX}.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class CaptureBufferChunked implements ICaptureBuffer {
+
+   public static final int CHUNK_SIZE_MAX = 64 * 1024;
+
+   public static final int CHUNK_SIZE_MIN = 1024;
+
+   /**
+    * Maximum number of bytes of chunks kept by {@link CaptureBufferChunked#reset()} for reuse
+    */
+   public static final int RETAIN_MAX     = 64 * 1024;
+
+   private byte[][]        chunks;
+
+   /**
+    * Number of chunks used in {@link CaptureBufferChunked#chunks}
+    */
+   private int             numChunks;
+
+   /**
+    * Write position in the last chunk
+    */
+   private int             pos;
+
+   private long            size;
+
+   public CaptureBufferChunked() {
+      chunks = new byte[8][];
+   }
+
+   private void addChunk() {
+      int newSize = CHUNK_SIZE_MIN;
+      if (numChunks != 0) {
+         newSize = Math.min(CHUNK_SIZE_MAX, chunks[numChunks - 1].length * 2);
+      }
+      if (numChunks == chunks.length) {
+         byte[][] newChunks = new byte[chunks.length * 2][];
+         System.arraycopy(chunks, 0, newChunks, 0, numChunks);
+         chunks = newChunks;
+      }
+      //chunks kept by a reset are reused
+      if (chunks[numChunks] == null) {
+         chunks[numChunks] = new byte[newSize];
+      }
+      numChunks++;
+      pos = 0;
+   }
+
+   public InputStream getInputStream() {
+      return new ChunkInputStream(numChunks, pos);
+   }
+
+   public long getSize() {
+      return size;
+   }
+
+   public void release() {
+      chunks = new byte[8][];
+      numChunks = 0;
+      pos = 0;
+      size = 0;
+   }
+
+   /**
+    * Keeps the first chunks up to {@link CaptureBufferChunked#RETAIN_MAX} bytes
+    */
+   public void reset() {
+      int retained = 0;
+      for (int i = 0; i < chunks.length; i++) {
+         if (chunks[i] != null) {
+            retained += chunks[i].length;
+            if (retained > RETAIN_MAX) {
+               chunks[i] = null;
+            }
+         }
+      }
+      numChunks = 0;
+      pos = 0;
+      size = 0;
+   }
+
+   public void write(byte[] b, int off, int len) {
+      while (len > 0) {
+         if (numChunks == 0 || pos == chunks[numChunks - 1].length) {
+            addChunk();
+         }
+         byte[] chunk = chunks[numChunks - 1];
+         int n = Math.min(len, chunk.length - pos);
+         System.arraycopy(b, off, chunk, pos, n);
+         pos += n;
+         off += n;
+         len -= n;
+         size += n;
+      }
+   }
+
+   public void write(int b) {
+      if (numChunks == 0 || pos == chunks[numChunks - 1].length) {
+         addChunk();
+      }
+      chunks[numChunks - 1][pos++] = (byte) b;
+      size++;
+   }
+
+   public void writeTo(OutputStream os) throws IOException {
+      for (int i = 0; i < numChunks; i++) {
+         int len = (i == numChunks - 1) ? pos : chunks[i].length;
+         os.write(chunks[i], 0, len);
+      }
+   }
+
+   /**
+    * Reads the chunks in place, no copy
+    */
+   private class ChunkInputStream extends InputStream {
+
+      private int       chunk;
+
+      private final int endChunk;
+
+      private final int endPos;
+
+      private int       offset;
+
+      ChunkInputStream(int endChunk, int endPos) {
+         this.endChunk = endChunk;
+         this.endPos = endPos;
+      }
+
+      private int available(int c) {
+         int len = (c == endChunk - 1) ? endPos : chunks[c].length;
+         return len - offset;
+      }
+
+      public int read() {
+         while (chunk < endChunk) {
+            if (available(chunk) > 0) {
+               return chunks[chunk][offset++] & 0xFF;
+            }
+            chunk++;
+            offset = 0;
+         }
+         return -1;
+      }
+
+      public int read(byte[] b, int off, int len) {
+         if (len == 0) {
+            return 0;
+         }
+         while (chunk < endChunk) {
+            int av = available(chunk);
+            if (av > 0) {
+               int n = Math.min(av, len);
+               System.arraycopy(chunks[chunk], offset, b, off, n);
+               offset += n;
+               return n;
+            }
+            chunk++;
+            offset = 0;
+         }
+         return -1;
+      }
+   }
+}
@@ -0,0 +1,184 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Vector;
+
+/**
+ * Bounded {@link ICaptureBuffer}. Memory used does not depend on how much a test prints.
+ * <br>
+ * Keeps the first headSize bytes and a ring buffer of the last tailSize bytes.
+ * Bytes in between are counted and dropped. When reading, a marker line with the number
+ * of dropped bytes is inserted between head and tail.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class CaptureBufferHeadTail implements ICaptureBuffer {
+
+   private long         dropped;
+
+   private final byte[] head;
+
+   private int          headLen;
+
+   /**
+    * Created on the first byte that does not fit in {@link CaptureBufferHeadTail#head}
+    */
+   private byte[]       tail;
+
+   private int          tailLen;
+
+   /**
+    * Next write position in the ring
+    */
+   private int          tailPos;
+
+   private final int    tailSize;
+
+   /**
+    * 
+    * @param headSize number of bytes kept at the start
+    * @param tailSize number of bytes kept at the end
+    */
+   public CaptureBufferHeadTail(int headSize, int tailSize) {
+      if (headSize < 0 || tailSize < 0) {
+         throw new IllegalArgumentException("headSize=" + headSize + " tailSize=" + tailSize);
+      }
+      this.head = new byte[headSize];
+      this.tailSize = tailSize;
+   }
+
+   /**
+    * Number of bytes written but not retained
+    * @return
+    */
+   public long getDropped() {
+      return dropped;
+   }
+
+   public InputStream getInputStream() {
+      Vector<InputStream> v = new Vector<InputStream>(4);
+      v.add(new ByteArrayInputStream(head, 0, headLen));
+      if (dropped != 0) {
+         v.add(new ByteArrayInputStream(getMarker()));
+      }
+      if (tailLen != 0) {
+         if (tailLen == tailSize) {
+            v.add(new ByteArrayInputStream(tail, tailPos, tailSize - tailPos));
+            v.add(new ByteArrayInputStream(tail, 0, tailPos));
+         } else {
+            v.add(new ByteArrayInputStream(tail, 0, tailLen));
+         }
+      }
+      return new SequenceInputStream(v.elements());
+   }
+
+   private byte[] getMarker() {
+      String str = "\n[... " + dropped + " bytes dropped ...]\n";
+      byte[] b = new byte[str.length()];
+      for (int i = 0; i < b.length; i++) {
+         b[i] = (byte) str.charAt(i);
+      }
+      return b;
+   }
+
+   public long getSize() {
+      return headLen + tailLen;
+   }
+
+   /**
+    * Memory is fixed. Same as {@link CaptureBufferHeadTail#reset()}
+    */
+   public void release() {
+      reset();
+   }
+
+   public void reset() {
+      headLen = 0;
+      tailLen = 0;
+      tailPos = 0;
+      dropped = 0;
+   }
+
+   public void write(byte[] b, int off, int len) {
+      int n = Math.min(len, head.length - headLen);
+      if (n > 0) {
+         System.arraycopy(b, off, head, headLen, n);
+         headLen += n;
+         off += n;
+         len -= n;
+      }
+      if (len == 0) {
+         return;
+      }
+      if (tailSize == 0) {
+         dropped += len;
+         return;
+      }
+      if (tail == null) {
+         tail = new byte[tailSize];
+      }
+      if (len >= tailSize) {
+         //everything in the ring is overwritten
+         dropped += tailLen + (len - tailSize);
+         System.arraycopy(b, off + len - tailSize, tail, 0, tailSize);
+         tailPos = 0;
+         tailLen = tailSize;
+         return;
+      }
+      int overwritten = tailLen + len - tailSize;
+      if (overwritten > 0) {
+         dropped += overwritten;
+      }
+      int first = Math.min(len, tailSize - tailPos);
+      System.arraycopy(b, off, tail, tailPos, first);
+      System.arraycopy(b, off + first, tail, 0, len - first);
+      tailPos = (tailPos + len) % tailSize;
+      tailLen = Math.min(tailSize, tailLen + len);
+   }
+
+   public void write(int b) {
+      if (headLen < head.length) {
+         head[headLen++] = (byte) b;
+         return;
+      }
+      if (tailSize == 0) {
+         dropped++;
+         return;
+      }
+      if (tail == null) {
+         tail = new byte[tailSize];
+      }
+      if (tailLen == tailSize) {
+         dropped++;
+      } else {
+         tailLen++;
+      }
+      tail[tailPos] = (byte) b;
+      tailPos = (tailPos + 1) % tailSize;
+   }
+
+   public void writeTo(OutputStream os) throws IOException {
+      os.write(head, 0, headLen);
+      if (dropped != 0) {
+         os.write(getMarker());
+      }
+      if (tailLen == 0) {
+         return;
+      }
+      if (tailLen == tailSize) {
+         os.write(tail, tailPos, tailSize - tailPos);
+         os.write(tail, 0, tailPos);
+      } else {
+         os.write(tail, 0, tailLen);
+      }
+   }
+}
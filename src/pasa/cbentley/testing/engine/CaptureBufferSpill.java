@@ -0,0 +1,318 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link ICaptureBuffer} keeping a small heap buffer and spilling the rest to a temporary file.
+ * <br>
+ * When the heap buffer is full, it is written to the file with a {@link FileChannel}.
+ * <br>
+ * {@link CaptureBufferSpill#writeTo(OutputStream)} replays the file with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ * When the destination is backed by a {@link FileOutputStream}, like the standard output, the transfer is done without copying through the heap.
+ * <br>
+ * {@link CaptureBufferSpill#release()} deletes the file.
+ * <br>
+ * <br>
+ * When spilling fails, for instance on a full disk, the bytes are not lost silently. The buffer goes on as a
+ * {@link CaptureBufferHeadTail} holding the heap content, a <code>[capture spill failed: reason]</code> marker
+ * and the last bytes written. Spilling is not tried again by this buffer.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class CaptureBufferSpill implements ICaptureBuffer {
+
+   private FileChannel           channel;
+
+   /**
+    * Storage of the bytes written after a spill failure. null while spilling works
+    */
+   private CaptureBufferHeadTail fallback;
+
+   /**
+    * Directory of the temp file. null for the default temp directory
+    */
+   private final File   dir;
+
+   private File         file;
+
+   /**
+    * Number of bytes in the file
+    */
+   private long         fileSize;
+
+   private final byte[] heap;
+
+   private int          heapLen;
+
+   /**
+    * Why spilling failed. null until then
+    */
+   private String       spillFailure;
+
+   /**
+    * 
+    * @param heapSize bytes kept on the heap before spilling to disk
+    * @param dir directory of the temp file, null for the default
+    */
+   public CaptureBufferSpill(int heapSize, File dir) {
+      if (heapSize <= 0) {
+         throw new IllegalArgumentException("heapSize=" + heapSize);
+      }
+      this.heap = new byte[heapSize];
+      this.dir = dir;
+   }
+
+   private void closeFile() {
+      if (channel != null) {
+         try {
+            channel.close();
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+         channel = null;
+      }
+      if (file != null) {
+         file.delete();
+         file = null;
+      }
+      fileSize = 0;
+   }
+
+   /**
+    * Returns the {@link FileOutputStream} at the bottom of os if any, flushing the layers above it.
+    * @param os
+    * @return null if none
+    */
+   private FileOutputStream findFileOutputStream(OutputStream os) throws IOException {
+      try {
+         Field f = FilterOutputStream.class.getDeclaredField("out");
+         f.setAccessible(true);
+         while (os instanceof FilterOutputStream) {
+            os.flush();
+            os = (OutputStream) f.get(os);
+         }
+      } catch (Exception e) {
+         //cannot look inside. no zero copy
+         return null;
+      }
+      if (os instanceof FileOutputStream) {
+         return (FileOutputStream) os;
+      }
+      return null;
+   }
+
+   private void flushHeap() {
+      int written = 0;
+      if (spillFailure == null) {
+         try {
+            if (channel == null) {
+               file = File.createTempFile("testcapture", ".out", dir);
+               file.deleteOnExit();
+               channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            ByteBuffer bb = ByteBuffer.wrap(heap, 0, heapLen);
+            while (bb.hasRemaining()) {
+               int n = channel.write(bb, fileSize);
+               fileSize += n;
+               written += n;
+            }
+            heapLen = 0;
+            return;
+         } catch (IOException e) {
+            //the test must not fail because of capture
+            spillFailure = String.valueOf(e);
+         }
+      }
+      startFallback(written);
+   }
+
+   /**
+    * Moves the heap bytes not spilled yet to {@link CaptureBufferSpill#fallback}, followed by the failure marker
+    * @param from first heap byte not in the file
+    */
+   private void startFallback(int from) {
+      String str = "\n[capture spill failed: " + spillFailure + "]\n";
+      int len = heapLen - from;
+      //the head keeps the heap bytes and the marker, the tail the last bytes written
+      fallback = new CaptureBufferHeadTail(len + str.length(), heap.length);
+      fallback.write(heap, from, len);
+      for (int i = 0; i < str.length(); i++) {
+         char c = str.charAt(i);
+         fallback.write(c < 128 ? c : '?');
+      }
+      heapLen = 0;
+   }
+
+   /**
+    * Temp file. null if nothing was spilled
+    * @return
+    */
+   public File getFile() {
+      return file;
+   }
+
+   public InputStream getInputStream() {
+      InputStream heapIn;
+      if (fallback != null) {
+         heapIn = fallback.getInputStream();
+      } else {
+         //snapshot the heap part, it is reused when spilling
+         byte[] heapCopy = new byte[heapLen];
+         System.arraycopy(heap, 0, heapCopy, 0, heapLen);
+         heapIn = new ByteArrayInputStream(heapCopy);
+      }
+      if (fileSize == 0) {
+         return heapIn;
+      }
+      try {
+         InputStream fileIn = new BoundedInputStream(new FileInputStream(file), fileSize);
+         return new SequenceInputStream(fileIn, heapIn);
+      } catch (IOException e) {
+         e.printStackTrace();
+         return heapIn;
+      }
+   }
+
+   public long getSize() {
+      return fileSize + (fallback != null ? fallback.getSize() : heapLen);
+   }
+
+   /**
+    * 
+    * @return true when spilling failed and the bytes written since are truncated
+    */
+   public boolean isSpillFailed() {
+      return spillFailure != null;
+   }
+
+   /**
+    * Closes and deletes the temp file. The buffer is empty and may still be used
+    */
+   public void release() {
+      closeFile();
+      fallback = null;
+      heapLen = 0;
+   }
+
+   public void reset() {
+      if (channel != null) {
+         try {
+            channel.truncate(0);
+         } catch (IOException e) {
+            e.printStackTrace();
+         }
+      }
+      fileSize = 0;
+      fallback = null;
+      heapLen = 0;
+   }
+
+   public void write(byte[] b, int off, int len) {
+      if (fallback != null) {
+         fallback.write(b, off, len);
+         return;
+      }
+      while (len > 0) {
+         if (fallback != null) {
+            //spill failed during this write
+            fallback.write(b, off, len);
+            return;
+         }
+         if (heapLen == heap.length) {
+            flushHeap();
+         }
+         int n = Math.min(len, heap.length - heapLen);
+         System.arraycopy(b, off, heap, heapLen, n);
+         heapLen += n;
+         off += n;
+         len -= n;
+      }
+   }
+
+   public void write(int b) {
+      if (fallback == null && heapLen == heap.length) {
+         flushHeap();
+      }
+      if (fallback != null) {
+         fallback.write(b);
+      } else {
+         heap[heapLen++] = (byte) b;
+      }
+   }
+
+   public void writeTo(OutputStream os) throws IOException {
+      if (fileSize != 0) {
+         FileOutputStream fos = findFileOutputStream(os);
+         WritableByteChannel target;
+         if (fos != null) {
+            target = fos.getChannel();
+         } else {
+            target = Channels.newChannel(os);
+         }
+         long pos = 0;
+         while (pos < fileSize) {
+            pos += channel.transferTo(pos, fileSize - pos, target);
+         }
+      }
+      if (fallback != null) {
+         fallback.writeTo(os);
+      } else {
+         os.write(heap, 0, heapLen);
+      }
+   }
+
+   /**
+    * Reads at most limit bytes of the file. Bytes spilled after opening are not read
+    */
+   private static class BoundedInputStream extends FilterInputStream {
+
+      private long remaining;
+
+      BoundedInputStream(InputStream in, long limit) {
+         super(in);
+         this.remaining = limit;
+      }
+
+      public int read() throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+         int b = in.read();
+         if (b >= 0) {
+            remaining--;
+         }
+         return b;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+         int n = in.read(b, off, (int) Math.min(len, remaining));
+         if (n > 0) {
+            remaining -= n;
+         }
+         return n;
+      }
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+
+import pasa.cbentley.core.src4.ctx.UCtx;
+
+/**
+ * Recycles {@link LoggedPrintStream} with a {@link CaptureBufferChunked} and their chunks across test methods.
+ * <br>
+ * A released stream is reset. Its buffer keeps up to {@link CaptureBufferChunked#RETAIN_MAX} bytes of chunks,
+ * so that the next test writes without allocating.
+ * <br>
+ * At most maxIdle streams are kept. Others are left to the garbage collector.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class CaptureStreamPool {
+
+   private final ArrayDeque<LoggedPrintStream> idle = new ArrayDeque<LoggedPrintStream>();
+
+   private final int                           maxIdle;
+
+   private final PrintStream                   toLog;
+
+   /**
+    * 
+    * @param toLog the stream the pooled streams print to when not capturing. Usually the original System.out
+    * @param maxIdle
+    */
+   public CaptureStreamPool(PrintStream toLog, int maxIdle) {
+      this.toLog = toLog;
+      this.maxIdle = maxIdle;
+   }
+
+   /**
+    * Returns an empty capture stream
+    * @param uc
+    * @return
+    */
+   public LoggedPrintStream acquire(UCtx uc) {
+      LoggedPrintStream lps;
+      synchronized (this) {
+         lps = idle.pollFirst();
+      }
+      if (lps == null) {
+         return LoggedPrintStream.create(uc, toLog, new CaptureBufferChunked());
+      }
+      lps.resetForReuse(uc);
+      return lps;
+   }
+
+   /**
+    * True when lps is kept by {@link CaptureStreamPool#release(LoggedPrintStream)} rather than released.
+    * <br>
+    * {@link LoggedPrintStream#release()} must not be called on such a stream. It would drop the chunks the pool retains.
+    * @param lps
+    * @return
+    */
+   boolean isPooled(LoggedPrintStream lps) {
+      return lps.os.getCapture() instanceof CaptureBufferChunked;
+   }
+
+   /**
+    * Gives back lps. It must not be used or bound to any thread anymore.
+    * <br>
+    * Streams not created by this pool are released.
+    * @param lps
+    */
+   public void release(LoggedPrintStream lps) {
+      if (lps == null) {
+         return;
+      }
+      if (!isPooled(lps)) {
+         lps.release();
+         return;
+      }
+      lps.flush();
+      lps.resetBuf();
+      synchronized (this) {
+         if (idle.size() < maxIdle) {
+            idle.addFirst(lps);
+         }
+      }
+   }
+}
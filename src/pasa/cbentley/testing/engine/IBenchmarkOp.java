@@ -0,0 +1,20 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+/**
+ * Operation measured by {@link TestCaseBenchmark}.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public interface IBenchmarkOp {
+
+   /**
+    * Runs the operation once
+    * @param bh consumes the results so that they are not optimized away
+    */
+   public void run(Blackhole bh);
+}
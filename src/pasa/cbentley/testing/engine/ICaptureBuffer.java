@@ -0,0 +1,58 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte level storage behind a {@link TestFilterOutputStream}.
+ * <br>
+ * Bytes are stored as written by the {@link LoggedPrintStream}. Decoding to characters
+ * is only done when the content is actually read with {@link ICaptureBuffer#getInputStream()}.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public interface ICaptureBuffer {
+
+   /**
+    * Stream over the captured bytes, in write order.
+    * <br>
+    * Content written after the call is not guaranteed to be seen by the returned stream.
+    * @return
+    */
+   public InputStream getInputStream();
+
+   /**
+    * Number of bytes currently held
+    * @return
+    */
+   public long getSize();
+
+   /**
+    * Frees memory and external resources held by the buffer, like temporary files.
+    * <br>
+    * The buffer is empty afterwards.
+    */
+   public void release();
+
+   /**
+    * Clears captured bytes. Buffer may be reused afterwards.
+    */
+   public void reset();
+
+   public void write(byte[] b, int off, int len);
+
+   public void write(int b);
+
+   /**
+    * Replays all captured bytes to os
+    * @param os
+    * @throws IOException
+    */
+   public void writeTo(OutputStream os) throws IOException;
+}
@@ -0,0 +1,23 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+/**
+ * Body run concurrently by {@link TestCaseBentley#stressTest(int, long, IStressBody)}.
+ * <br>
+ * Invariant violations are reported with the threadAssert methods of {@link TestCaseBentley}.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public interface IStressBody {
+
+   /**
+    * Runs one iteration
+    * @param thread index of the worker thread, 0 to threads - 1
+    * @param iteration index of the iteration, unique among all threads
+    */
+   public void run(int thread, long iteration);
+}
@@ -0,0 +1,67 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Line protocol between a test runner and the process running the tests.
+ * Used by {@link TestRunnerDaemon} over a socket and by {@link TestShardRunner} over the pipes of its child JVMs.
+ * <br>
+ * <br>
+ * Request lines, after {@link ITechTestRun#HEADER}. See {@link TestRunRequest}
+ * <li> <code>token secret</code> required by {@link TestRunnerDaemon}, which checks it before anything else. See {@link TestRunnerDaemon#getTokenFile(int)}
+ * <li> <code>test className</code> or <code>test className#method</code>. Repeatable. A class with a static suite() method is run through it
+ * <li> <code>flags n</code> test flags of the {@link TestCtx}
+ * <li> <code>engine n</code> engine flags of the {@link TestCtx}
+ * <li> <code>timeout millis</code> see {@link TestCtx#setTestTimeoutMillis(long)}
+ * <li> <code>classpath path</code> module class path
+ * <li> <code>shard index count</code> runs only the test methods of one partition
+ * <li> <code>timings path</code> {@link TestTimingStore} file used to balance the partitions
+ * <li> <code>end</code>
+ * <br>
+ * Response lines. See {@link TestRunResponse}
+ * <li> <code>out line</code> console output, including the output printed by {@link TestCaseBentley#printTestStream()} on failures
+ * <li> <code>start name</code>, <code>end name</code>
+ * <li> <code>failure name message</code>, <code>error name message</code>, followed by <code>trace line</code> lines
+ * <li> <code>done runCount failureCount errorCount millis</code>
+ * 
+ * @author Charles Bentley
+ *
+ */
+public interface ITechTestRun {
+
+   public static final String CMD_CLASSPATH = "classpath";
+
+   public static final String CMD_DONE      = "done";
+
+   public static final String CMD_END       = "end";
+
+   public static final String CMD_ENGINE    = "engine";
+
+   public static final String CMD_ERROR     = "error";
+
+   public static final String CMD_FAILURE   = "failure";
+
+   public static final String CMD_FLAGS     = "flags";
+
+   public static final String CMD_OUT       = "out";
+
+   public static final String CMD_SHARD     = "shard";
+
+   public static final String CMD_START     = "start";
+
+   public static final String CMD_TEST      = "test";
+
+   public static final String CMD_TIMEOUT   = "timeout";
+
+   public static final String CMD_TIMINGS   = "timings";
+
+   public static final String CMD_TOKEN     = "token";
+
+   public static final String CMD_TRACE     = "trace";
+
+   public static final String HEADER        = "#pasa.testing.run 1";
+}
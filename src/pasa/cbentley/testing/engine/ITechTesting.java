@@ -87,9 +87,13 @@ public interface ITechTesting extends ITech {
    public static final int TEST_FLAG_06_TEAR_DOWN_RESULT   = 1 << 5;
 
    /**
-    * 
+    * Measures wall time, thread CPU time, allocated bytes, GC and heap of each test method.
+    * The {@link TestMetrics} are printed in {@link TestCaseBentley#tearDown()}
+    * <p>
+    * By default, we don't want to measure tests
+    * </p>
     */
-   public static final int TEST_FLAG_07_                   = 1 << 6;
+   public static final int TEST_FLAG_07_PRINT_METRICS      = 1 << 6;
 
    /**
     * Display a debug statement when every method of {@link TestCaseBentley} class is called
@@ -101,4 +105,105 @@ public interface ITechTesting extends ITech {
     * </p>
     */
    public static final int TEST_FLAG_08_DEBUG_METHOD_NAMES = 1 << 7;
+
+   /**
+    * Test method output is captured without limit.
+    * <p>
+    * Default capture type of {@link pasa.cbentley.testing.ctx.TestCtx#getCaptureType()}
+    * </p>
+    */
+   public static final int CAPTURE_TYPE_0_UNBOUNDED        = 0;
+
+   /**
+    * Test method output is captured in a fixed budget. See {@link CaptureBufferHeadTail}.
+    * <br>
+    * The first {@link pasa.cbentley.testing.ctx.TestCtx#getCaptureHeadSize()} bytes and the last {@link pasa.cbentley.testing.ctx.TestCtx#getCaptureTailSize()} bytes
+    * are kept. Only the number of bytes in between is kept.
+    */
+   public static final int CAPTURE_TYPE_1_HEAD_TAIL        = 1;
+
+   /**
+    * Test method output is captured in a small heap buffer of {@link pasa.cbentley.testing.ctx.TestCtx#getCaptureSpillHeapSize()} bytes
+    * and spilled to a temporary file. See {@link CaptureBufferSpill}.
+    * <br>
+    * The file is deleted at the end of the test method.
+    */
+   public static final int CAPTURE_TYPE_2_SPILL            = 2;
+
+   /**
+    * {@link TestSuiteBentley} runs its tests one after the other on the calling thread.
+    * <p>
+    * Default of {@link pasa.cbentley.testing.ctx.TestCtx#getParallelMode()}
+    * </p>
+    */
+   public static final int PARALLEL_0_NONE                 = 0;
+
+   /**
+    * {@link TestSuiteBentley} runs test classes concurrently. Methods of a class run one after the other.
+    */
+   public static final int PARALLEL_1_CLASS                = 1;
+
+   /**
+    * {@link TestSuiteBentley} runs test methods concurrently.
+    */
+   public static final int PARALLEL_2_METHOD               = 2;
+
+   /**
+    * Engine flags are stored apart from test flags, which are shared with sub modules.
+    * See {@link pasa.cbentley.testing.ctx.TestCtx#hasEngineFlag(int)}
+    * <br>
+    * When set, {@link TestCaseBenchmark#assertNotSlowerThanBaseline(String, Runnable, double)} records the measure as the new baseline
+    * instead of comparing it.
+    * <p>
+    * By default, baselines are compared and only recorded when missing
+    * </p>
+    */
+   public static final int ENGINE_FLAG_01_UPDATE_BASELINES = 1 << 0;
+
+   /**
+    * When set, {@link TestCaseBentley#runBare()} fails tests that leave threads alive, daemon or not. See {@link ThreadLeakChecker}.
+    * <br>
+    * Only applies when tests run one after the other.
+    * <p>
+    * By default, leaks are not checked. Libraries lazily start threads of their own that would be reported
+    * </p>
+    */
+   public static final int ENGINE_FLAG_02_CHECK_THREAD_LEAKS  = 1 << 1;
+
+   /**
+    * When set, {@link TestCaseBentley#runBare()} watches test methods for deadlocks. See {@link TestWatchdog}.
+    * <br>
+    * A watchdog thread polls for deadlocks during each test method.
+    * <p>
+    * By default, deadlocks are not watched. A deadlocked test hangs unless {@link pasa.cbentley.testing.ctx.TestCtx#setTestTimeoutMillis(long)} is set
+    * </p>
+    */
+   public static final int ENGINE_FLAG_03_WATCHDOG            = 1 << 2;
+
+   /**
+    * When set, {@link TestSuiteBentley} runs first the tests that failed in their last run, most recent failure first.
+    * Needs {@link pasa.cbentley.testing.ctx.TestCtx#setTimingFile(java.io.File)}.
+    * <p>
+    * By default, tests run in their suite order, longest first when parallel
+    * </p>
+    */
+   public static final int ENGINE_FLAG_04_FAILED_FIRST        = 1 << 3;
+
+   /**
+    * When set, tests found in the {@link TestResultCache} are run anyways. Their results still update the cache.
+    * <p>
+    * By default, a test whose code, resources and flags did not change since it last passed is reported as passed without running.
+    * Needs {@link pasa.cbentley.testing.ctx.TestCtx#setResultCache(java.io.File, int)}.
+    * </p>
+    */
+   public static final int ENGINE_FLAG_05_FORCE_FULL_RUN      = 1 << 4;
+
+   /**
+    * When set, {@link TestCaseBentley#assertAllocatesAtMost(long, Runnable)} and {@link TestCaseBentley#assertNoAllocation(Runnable)}
+    * pass without checking on a JVM that cannot count allocations. See {@link AllocationMeter#isSupported()}.
+    * <p>
+    * By default, they fail on such a JVM, so that a check that never runs is not reported as passed
+    * </p>
+    */
+   public static final int ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS  = 1 << 5;
 }
@@ -0,0 +1,18 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+/**
+ * Marker for {@link TestCaseBentley} classes that must not run concurrently with other tests,
+ * for instance because they touch global state.
+ * <br>
+ * In a parallel {@link TestSuiteBentley}, their tests are run on the calling thread once all parallel tests are done.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public interface ITestSerial {
+
+}
@@ -23,7 +23,9 @@ public class InputStreamFactoryJUnit implements IInputStreamFactory {
    }
    
    public InputStream getResourceAsStream(String name) throws IOException {
-      
+      if (testCase instanceof TestCaseBentley) {
+         ((TestCaseBentley) testCase).addResourceRead(name);
+      }
       return testCase.getClass().getResourceAsStream(name);
    }
 
@@ -0,0 +1,320 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import pasa.cbentley.core.src4.ctx.ObjectU;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.core.src4.logging.Dctx;
+
+/**
+ * Lock free latency recorder with a fixed memory footprint.
+ * <br>
+ * Values, usually nanoseconds, are counted in log-linear buckets. Each power of 2 range is split in
+ * 2^(subBucketBits-1) linear sub buckets. The relative error of a reported value is at most 1/2^(subBucketBits-1).
+ * <br>
+ * <br>
+ * {@link LatencyHistogram#record(long)} does not allocate nor lock. Many threads may record in the same histogram,
+ * or each thread records in its own and the histograms are merged with {@link LatencyHistogram#add(LatencyHistogram)}.
+ * <br>
+ * <br>
+ * Values above the highest trackable value are counted in the last bucket. {@link LatencyHistogram#getMax()} is exact.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class LatencyHistogram extends ObjectU {
+
+   /**
+    * 1 hour in nanoseconds
+    */
+   public static final long      HIGHEST_DEFAULT  = 3600L * 1000L * 1000L * 1000L;
+
+   /**
+    * 128 sub buckets per power of 2. Less than 1% error
+    */
+   public static final int       SUB_BITS_DEFAULT = 8;
+
+   private final AtomicLongArray counts;
+
+   private final long            highestTrackable;
+
+   private final AtomicLong      max;
+
+   private final AtomicLong      min;
+
+   private final int             subBucketBits;
+
+   private final int             subBucketCount;
+
+   private final int             subBucketHalf;
+
+   private final AtomicLong      sum;
+
+   private final AtomicLong      totalCount;
+
+   /**
+    * Tracks up to {@link LatencyHistogram#HIGHEST_DEFAULT} with {@link LatencyHistogram#SUB_BITS_DEFAULT}
+    * @param uc
+    */
+   public LatencyHistogram(UCtx uc) {
+      this(uc, HIGHEST_DEFAULT, SUB_BITS_DEFAULT);
+   }
+
+   /**
+    * 
+    * @param uc
+    * @param highestTrackable largest value counted in its own bucket
+    * @param subBucketBits between 2 and 16
+    */
+   public LatencyHistogram(UCtx uc, long highestTrackable, int subBucketBits) {
+      super(uc);
+      if (subBucketBits < 2 || subBucketBits > 16) {
+         throw new IllegalArgumentException("subBucketBits " + subBucketBits);
+      }
+      if (highestTrackable < 1) {
+         throw new IllegalArgumentException("highestTrackable " + highestTrackable);
+      }
+      this.highestTrackable = highestTrackable;
+      this.subBucketBits = subBucketBits;
+      this.subBucketCount = 1 << subBucketBits;
+      this.subBucketHalf = subBucketCount >> 1;
+      this.counts = new AtomicLongArray(getIndex(highestTrackable) + 1);
+      this.totalCount = new AtomicLong();
+      this.sum = new AtomicLong();
+      this.max = new AtomicLong(0);
+      this.min = new AtomicLong(Long.MAX_VALUE);
+   }
+
+   /**
+    * Adds the counts of h to this histogram.
+    * <br>
+    * h must have the same layout. Recording in h while adding is allowed, the concurrent records may or may not be added.
+    * @param h
+    * @throws IllegalArgumentException when layouts differ
+    */
+   public void add(LatencyHistogram h) {
+      if (h.subBucketBits != subBucketBits || h.highestTrackable != highestTrackable) {
+         throw new IllegalArgumentException("Histogram layouts differ");
+      }
+      int len = counts.length();
+      long total = 0;
+      for (int i = 0; i < len; i++) {
+         long c = h.counts.get(i);
+         if (c != 0) {
+            counts.addAndGet(i, c);
+            total += c;
+         }
+      }
+      if (total == 0) {
+         return;
+      }
+      totalCount.addAndGet(total);
+      sum.addAndGet(h.sum.get());
+      updateMax(h.max.get());
+      updateMin(h.min.get());
+   }
+
+   public long getHighestTrackable() {
+      return highestTrackable;
+   }
+
+   /**
+    * 
+    * @param value positive
+    * @return
+    */
+   private int getIndex(long value) {
+      if (value < subBucketCount) {
+         return (int) value;
+      }
+      int msb = 63 - Long.numberOfLeadingZeros(value);
+      int shift = msb - subBucketBits + 1;
+      return shift * subBucketHalf + (int) (value >>> shift);
+   }
+
+   /**
+    * Largest value counted in the same bucket as index
+    * @param index
+    * @return
+    */
+   private long getHighestEquivalent(int index) {
+      if (index < subBucketCount) {
+         return index;
+      }
+      int shift = index / subBucketHalf - 1;
+      long mantissa = index - shift * subBucketHalf;
+      return (mantissa << shift) + (1L << shift) - 1;
+   }
+
+   /**
+    * 
+    * @return 0 if empty
+    */
+   public long getMax() {
+      return max.get();
+   }
+
+   /**
+    * 
+    * @return 0 if empty
+    */
+   public double getMean() {
+      long n = totalCount.get();
+      if (n == 0) {
+         return 0;
+      }
+      return (double) sum.get() / n;
+   }
+
+   /**
+    * 
+    * @return 0 if empty
+    */
+   public long getMin() {
+      long n = min.get();
+      return n == Long.MAX_VALUE ? 0 : n;
+   }
+
+   public long getTotalCount() {
+      return totalCount.get();
+   }
+
+   /**
+    * Value at or under which percentile % of the recorded values fall.
+    * <br>
+    * The highest value of the bucket is returned, never above {@link LatencyHistogram#getMax()}
+    * @param percentile 0 to 100
+    * @return 0 if empty
+    */
+   public long getValueAtPercentile(double percentile) {
+      long n = totalCount.get();
+      if (n == 0) {
+         return 0;
+      }
+      if (percentile > 100) {
+         percentile = 100;
+      }
+      long target = (long) Math.ceil(percentile / 100.0 * n);
+      if (target < 1) {
+         target = 1;
+      }
+      long cumul = 0;
+      int len = counts.length();
+      for (int i = 0; i < len; i++) {
+         cumul += counts.get(i);
+         if (cumul >= target) {
+            return Math.min(getHighestEquivalent(i), getMax());
+         }
+      }
+      return getMax();
+   }
+
+   /**
+    * Counts value. Negative values are counted as 0
+    * @param value
+    */
+   public void record(long value) {
+      recordCount(value, 1);
+   }
+
+   /**
+    * Counts value count times
+    * @param value
+    * @param count
+    */
+   public void recordCount(long value, long count) {
+      if (value < 0) {
+         value = 0;
+      }
+      int index = getIndex(Math.min(value, highestTrackable));
+      counts.addAndGet(index, count);
+      totalCount.addAndGet(count);
+      sum.addAndGet(value * count);
+      updateMax(value);
+      updateMin(value);
+   }
+
+   /**
+    * Records the nanos elapsed since startNanos, a {@link System#nanoTime()} value
+    * @param startNanos
+    */
+   public void recordSince(long startNanos) {
+      record(System.nanoTime() - startNanos);
+   }
+
+   /**
+    * Clears all counts. Not atomic with concurrent records
+    */
+   public void reset() {
+      int len = counts.length();
+      for (int i = 0; i < len; i++) {
+         counts.set(i, 0);
+      }
+      totalCount.set(0);
+      sum.set(0);
+      max.set(0);
+      min.set(Long.MAX_VALUE);
+   }
+
+   private void updateMax(long value) {
+      long current = max.get();
+      while (value > current) {
+         if (max.compareAndSet(current, value)) {
+            return;
+         }
+         current = max.get();
+      }
+   }
+
+   private void updateMin(long value) {
+      long current = min.get();
+      while (value < current) {
+         if (min.compareAndSet(current, value)) {
+            return;
+         }
+         current = min.get();
+      }
+   }
+
+   /**
+    * Nanos as microseconds with 1 decimal
+    * @param nanos
+    * @return
+    */
+   private static String toMicros(double nanos) {
+      return BenchmarkResult.format(nanos / 1000.0) + "us";
+   }
+
+   //#mdebug
+   public void toString(Dctx dc) {
+      dc.root(this, LatencyHistogram.class, "@line5");
+      toStringPrivate(dc);
+      super.toString(dc.sup());
+      dc.nl();
+      dc.append("min=" + toMicros(getMin()) + " mean=" + toMicros(getMean()));
+      dc.nl();
+      dc.append("p50=" + toMicros(getValueAtPercentile(50)) + " p90=" + toMicros(getValueAtPercentile(90)) + " p99=" + toMicros(getValueAtPercentile(99)));
+      dc.append(" p999=" + toMicros(getValueAtPercentile(99.9)) + " max=" + toMicros(getMax()));
+      dc.nl();
+      dc.appendVarWithSpace("buckets", counts.length());
+      dc.appendVarWithSpace("subBucketBits", subBucketBits);
+   }
+
+   private void toStringPrivate(Dctx dc) {
+      dc.append(" count=" + getTotalCount());
+   }
+
+   public void toString1Line(Dctx dc) {
+      dc.root1Line(this, LatencyHistogram.class);
+      toStringPrivate(dc);
+      super.toString1Line(dc.sup1Line());
+   }
+
+   //#enddebug
+
+}
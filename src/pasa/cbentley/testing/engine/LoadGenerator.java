@@ -0,0 +1,152 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import pasa.cbentley.core.src4.ctx.UCtx;
+
+/**
+ * Open loop load harness. Operations are scheduled at a fixed rate, whether or not previous operations are done.
+ * <br>
+ * <br>
+ * Operation i is intended to start at start + i / rate. The next free worker thread takes the next operation,
+ * waits until its intended start and runs it.
+ * When the component stalls, the operations queue up and their latency, measured from the intended start,
+ * includes the time spent waiting. This corrects the coordinated omission of closed loops, which stop sending while stalled.
+ * <br>
+ * <br>
+ * Throughput cannot exceed what the worker threads can run. Use enough threads to cover rate x latency.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class LoadGenerator {
+
+   private static void joinUninterruptibly(Thread t) {
+      while (true) {
+         try {
+            t.join();
+            return;
+         } catch (InterruptedException e) {
+            //rethrown by the caller once t is done
+         }
+      }
+   }
+
+   private long         durationMillis;
+
+   private double       rate;
+
+   private int          threads;
+
+   protected final UCtx uc;
+
+   /**
+    * 
+    * @param uc
+    * @param rate operations per second, all threads
+    * @param threads number of worker threads
+    * @param durationMillis time during which operations are scheduled
+    */
+   public LoadGenerator(UCtx uc, double rate, int threads, long durationMillis) {
+      this.uc = uc;
+      if (rate <= 0) {
+         throw new IllegalArgumentException("rate " + rate);
+      }
+      if (threads < 1) {
+         throw new IllegalArgumentException("threads " + threads);
+      }
+      this.rate = rate;
+      this.threads = threads;
+      this.durationMillis = durationMillis;
+   }
+
+   /**
+    * Drives op at the target rate and blocks until all scheduled operations are done.
+    * <br>
+    * Exceptions thrown by op are counted and do not stop the run. A worker thread that is interrupted stops taking operations.
+    * @param op
+    * @return
+    * @throws InterruptedException when the calling thread is interrupted. The workers are stopped and joined before
+    */
+   public LoadResult run(final Runnable op) throws InterruptedException {
+      final LatencyHistogram responseTimes = new LatencyHistogram(uc);
+      final LatencyHistogram serviceTimes = new LatencyHistogram(uc);
+      final AtomicLong sequence = new AtomicLong();
+      final AtomicLong completed = new AtomicLong();
+      final AtomicLong errors = new AtomicLong();
+      final AtomicBoolean stop = new AtomicBoolean();
+      final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+      final long[] lastDone = new long[threads];
+      final double intervalNanos = 1000000000.0 / rate;
+      final long start = System.nanoTime() + 1000000L; //let all workers start
+      final long end = start + durationMillis * 1000000L;
+
+      Thread[] workers = new Thread[threads];
+      for (int i = 0; i < threads; i++) {
+         final int index = i;
+         workers[i] = new Thread(TestOutputRouter.propagateCurrent(new Runnable() {
+            public void run() {
+               long last = start;
+               loop: while (!stop.get()) {
+                  long intended = start + (long) (sequence.getAndIncrement() * intervalNanos);
+                  if (intended - end >= 0) {
+                     break;
+                  }
+                  long now = System.nanoTime();
+                  while (intended - now > 0) {
+                     //parkNanos returns at once while interrupted
+                     if (Thread.interrupted() || stop.get()) {
+                        break loop;
+                     }
+                     LockSupport.parkNanos(intended - now);
+                     now = System.nanoTime();
+                  }
+                  try {
+                     op.run();
+                  } catch (Throwable e) {
+                     errors.incrementAndGet();
+                     firstError.compareAndSet(null, e);
+                  }
+                  long done = System.nanoTime();
+                  responseTimes.record(done - intended);
+                  serviceTimes.record(done - now);
+                  completed.incrementAndGet();
+                  last = done;
+               }
+               lastDone[index] = last;
+            }
+         }), "load-" + i);
+         workers[i].setDaemon(true);
+         workers[i].start();
+      }
+      try {
+         for (int i = 0; i < threads; i++) {
+            workers[i].join();
+         }
+      } catch (InterruptedException e) {
+         stop.set(true);
+         for (int i = 0; i < threads; i++) {
+            workers[i].interrupt();
+         }
+         for (int i = 0; i < threads; i++) {
+            joinUninterruptibly(workers[i]);
+         }
+         throw e;
+      }
+      long finish = start;
+      for (int i = 0; i < threads; i++) {
+         if (lastDone[i] - finish > 0) {
+            finish = lastDone[i];
+         }
+      }
+      return new LoadResult(uc, rate, threads, completed.get(), finish - start, errors.get(), firstError.get(), responseTimes, serviceTimes);
+   }
+
+}
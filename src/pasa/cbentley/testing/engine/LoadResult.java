@@ -0,0 +1,140 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import pasa.cbentley.core.src4.ctx.ObjectU;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.core.src4.logging.Dctx;
+
+/**
+ * Outcome of a {@link LoadGenerator} run.
+ * <br>
+ * <li> {@link LoadResult#getResponseTimes()} measured from the intended start of each operation. Corrected for coordinated omission
+ * <li> {@link LoadResult#getServiceTimes()} measured from the actual start. What a closed loop would report
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class LoadResult extends ObjectU {
+
+   private final long             completed;
+
+   private final long             elapsedNanos;
+
+   private final long             errorCount;
+
+   private final Throwable        firstError;
+
+   private final LatencyHistogram responseTimes;
+
+   private final LatencyHistogram serviceTimes;
+
+   private final double           targetRate;
+
+   private final int              threads;
+
+   public LoadResult(UCtx uc, double targetRate, int threads, long completed, long elapsedNanos, long errorCount, Throwable firstError, LatencyHistogram responseTimes,
+         LatencyHistogram serviceTimes) {
+      super(uc);
+      this.targetRate = targetRate;
+      this.threads = threads;
+      this.completed = completed;
+      this.elapsedNanos = elapsedNanos;
+      this.errorCount = errorCount;
+      this.firstError = firstError;
+      this.responseTimes = responseTimes;
+      this.serviceTimes = serviceTimes;
+   }
+
+   /**
+    * Operations completed per second
+    * @return
+    */
+   public double getAchievedRate() {
+      if (elapsedNanos <= 0) {
+         return 0;
+      }
+      return completed * 1000000000.0 / elapsedNanos;
+   }
+
+   /**
+    * Operations run, including those that threw
+    * @return
+    */
+   public long getCompleted() {
+      return completed;
+   }
+
+   public long getElapsedNanos() {
+      return elapsedNanos;
+   }
+
+   /**
+    * Number of operations that threw
+    * @return
+    */
+   public long getErrorCount() {
+      return errorCount;
+   }
+
+   /**
+    * 
+    * @return null if no operation threw
+    */
+   public Throwable getFirstError() {
+      return firstError;
+   }
+
+   /**
+    * Latencies from the scheduled start of each operation to its end, in nanoseconds
+    * @return
+    */
+   public LatencyHistogram getResponseTimes() {
+      return responseTimes;
+   }
+
+   /**
+    * Latencies from the actual start of each operation to its end, in nanoseconds
+    * @return
+    */
+   public LatencyHistogram getServiceTimes() {
+      return serviceTimes;
+   }
+
+   public double getTargetRate() {
+      return targetRate;
+   }
+
+   public int getThreads() {
+      return threads;
+   }
+
+   //#mdebug
+   public void toString(Dctx dc) {
+      dc.root(this, LoadResult.class, "@line5");
+      toStringPrivate(dc);
+      super.toString(dc.sup());
+      dc.nl();
+      dc.appendVarWithSpace("threads", threads);
+      dc.append(" completed=" + completed);
+      dc.append(" errors=" + errorCount);
+      dc.append(" elapsed=" + (elapsedNanos / 1000000L) + "ms");
+      dc.nlLvl(responseTimes, "ResponseTimes");
+      dc.nlLvl(serviceTimes, "ServiceTimes");
+   }
+
+   private void toStringPrivate(Dctx dc) {
+      dc.append(" target=" + BenchmarkResult.format(targetRate) + "ops/s achieved=" + BenchmarkResult.format(getAchievedRate()) + "ops/s");
+   }
+
+   public void toString1Line(Dctx dc) {
+      dc.root1Line(this, LoadResult.class);
+      toStringPrivate(dc);
+      super.toString1Line(dc.sup1Line());
+   }
+
+   //#enddebug
+
+}
@@ -37,12 +37,23 @@ public class LoggedPrintStream extends PrintStream implements IStringable {
     * @return
     */
    public static LoggedPrintStream create(UCtx uc, final PrintStream toLog) {
+      return create(uc, toLog, new CaptureBufferChunked());
+   }
+
+   /**
+    * Creates a {@link LoggedPrintStream} storing its bytes in capture
+    * @param uc
+    * @param toLog Usually System.out
+    * @param capture
+    * @return
+    */
+   public static LoggedPrintStream create(UCtx uc, final PrintStream toLog, ICaptureBuffer capture) {
       try {
          Field f = FilterOutputStream.class.getDeclaredField("out");
          f.setAccessible(true);
          OutputStream psout = (OutputStream) f.get(toLog);
          //we filter all calls coming in by the System.out. They are not forwarded
-         TestFilterOutputStream fos = new TestFilterOutputStream(uc, psout);
+         TestFilterOutputStream fos = new TestFilterOutputStream(uc, psout, capture);
          LoggedPrintStream lps = new LoggedPrintStream(fos);
          return lps;
       } catch (Exception e) {
@@ -51,6 +62,23 @@ public class LoggedPrintStream extends PrintStream implements IStringable {
       return null;
    }
 
+   /**
+    * Frees the captured data and its resources, like spill files
+    */
+   public void release() {
+      os.release();
+   }
+
+   /**
+    * Empties the stream and restores default flags before reuse. See {@link CaptureStreamPool}
+    * @param uc
+    */
+   void resetForReuse(UCtx uc) {
+      clearError();
+      os.resetForReuse(uc);
+      this.uc = uc;
+   }
+
    public void resetBuf() {
       os.resetBuf();
    }
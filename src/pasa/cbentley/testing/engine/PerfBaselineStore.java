@@ -0,0 +1,143 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * Local store of performance baselines, one properties file per test class in a directory.
+ * <br>
+ * A baseline is keyed by test method and measure name. It keeps the mean and standard deviation of nanos per operation
+ * and the number of samples of the {@link BenchmarkResult} it was recorded from.
+ * <br>
+ * Thread safe. Files are UTF-8, replaced through an {@link AtomicFile} on each update.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class PerfBaselineStore {
+
+   private final File                        dir;
+
+   private final HashMap<String, Properties> files = new HashMap<String, Properties>();
+
+   public PerfBaselineStore(File dir) {
+      this.dir = dir;
+   }
+
+   /**
+    * 
+    * @param testClass
+    * @param key test method and measure name
+    * @return null if no baseline was recorded
+    */
+   public synchronized Baseline get(String testClass, String key) {
+      Properties p = getProperties(testClass);
+      String mean = p.getProperty(key + ".mean");
+      if (mean == null) {
+         return null;
+      }
+      try {
+         return new Baseline(Double.parseDouble(mean), Double.parseDouble(p.getProperty(key + ".stddev", "0")), Integer.parseInt(p.getProperty(key + ".n", "1")));
+      } catch (NumberFormatException e) {
+         //corrupted entry. record a new one
+         return null;
+      }
+   }
+
+   public File getDir() {
+      return dir;
+   }
+
+   private File getFile(String testClass) {
+      return new File(dir, testClass + ".baseline");
+   }
+
+   private Properties getProperties(String testClass) {
+      Properties p = files.get(testClass);
+      if (p == null) {
+         p = new Properties();
+         File f = getFile(testClass);
+         if (f.exists()) {
+            try {
+               Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+               try {
+                  p.load(r);
+               } finally {
+                  r.close();
+               }
+            } catch (IOException e) {
+               e.printStackTrace();
+            }
+         }
+         files.put(testClass, p);
+      }
+      return p;
+   }
+
+   /**
+    * Records result as the baseline of key
+    * @param testClass
+    * @param key
+    * @param result
+    * @throws IOException
+    */
+   public synchronized void put(String testClass, String key, BenchmarkResult result) throws IOException {
+      Properties p = getProperties(testClass);
+      p.setProperty(key + ".mean", String.valueOf(result.getMeanNanosPerOp()));
+      p.setProperty(key + ".stddev", String.valueOf(result.getStdDevNanosPerOp()));
+      p.setProperty(key + ".n", String.valueOf(result.getSampleCount()));
+      AtomicFile af = new AtomicFile(getFile(testClass));
+      Writer w = af.startWrite();
+      try {
+         p.store(w, "Performance baselines of " + testClass);
+      } catch (IOException e) {
+         af.failWrite(w);
+         throw e;
+      }
+      af.finishWrite(w);
+   }
+
+   /**
+    * Recorded measure
+    */
+   public static class Baseline {
+
+      private final double mean;
+
+      private final int    n;
+
+      private final double stdDev;
+
+      public Baseline(double mean, double stdDev, int n) {
+         this.mean = mean;
+         this.stdDev = stdDev;
+         this.n = n;
+      }
+
+      /**
+       * Mean nanos per operation
+       * @return
+       */
+      public double getMean() {
+         return mean;
+      }
+
+      public int getN() {
+         return n;
+      }
+
+      public double getStdDev() {
+         return stdDev;
+      }
+   }
+}
@@ -0,0 +1,189 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import pasa.cbentley.core.src4.ctx.ObjectU;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.core.src4.logging.Dctx;
+
+/**
+ * Outcome of {@link TestCaseBentley#stressTest(int, long, IStressBody)}.
+ * <br>
+ * Per worker thread:
+ * <li> number of iterations run. Threads take iterations from a shared counter, so the spread shows the fairness
+ * <li> times and counts the thread was blocked on a monitor or waiting, from {@link java.lang.management.ThreadInfo}.
+ * Times are -1 when contention monitoring is not supported.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class StressResult extends ObjectU {
+
+   private static long sum(long[] values) {
+      long s = 0;
+      for (int i = 0; i < values.length; i++) {
+         s += values[i];
+      }
+      return s;
+   }
+
+   final long[]       blockedCount;
+
+   final long[]       blockedMillis;
+
+   long               elapsedNanos;
+
+   final long[]       ops;
+
+   private final int  threads;
+
+   final long[]       waitedCount;
+
+   final long[]       waitedMillis;
+
+   /**
+    * Arrays are filled by {@link TestCaseBentley#stressTest(int, long, IStressBody)}
+    * @param uc
+    * @param threads
+    */
+   StressResult(UCtx uc, int threads) {
+      super(uc);
+      this.threads = threads;
+      ops = new long[threads];
+      blockedCount = new long[threads];
+      blockedMillis = new long[threads];
+      waitedCount = new long[threads];
+      waitedMillis = new long[threads];
+   }
+
+   public long getBlockedCount() {
+      return sum(blockedCount);
+   }
+
+   /**
+    * 
+    * @param thread
+    * @return
+    */
+   public long getBlockedCount(int thread) {
+      return blockedCount[thread];
+   }
+
+   /**
+    * 
+    * @return -1 if not supported
+    */
+   public long getBlockedMillis() {
+      return blockedMillis[0] < 0 ? -1 : sum(blockedMillis);
+   }
+
+   public long getElapsedNanos() {
+      return elapsedNanos;
+   }
+
+   /**
+    * Jain's fairness index of the iterations per thread.
+    * <br>
+    * 1 when all threads ran as many iterations, 1/threads when a single thread ran them all
+    * @return
+    */
+   public double getFairness() {
+      double s = 0;
+      double s2 = 0;
+      for (int i = 0; i < threads; i++) {
+         s += ops[i];
+         s2 += (double) ops[i] * ops[i];
+      }
+      if (s2 == 0) {
+         return 1;
+      }
+      return s * s / (threads * s2);
+   }
+
+   public long getMaxOps() {
+      long max = 0;
+      for (int i = 0; i < threads; i++) {
+         max = Math.max(max, ops[i]);
+      }
+      return max;
+   }
+
+   public long getMinOps() {
+      long min = Long.MAX_VALUE;
+      for (int i = 0; i < threads; i++) {
+         min = Math.min(min, ops[i]);
+      }
+      return min;
+   }
+
+   /**
+    * Iterations run by thread
+    * @param thread
+    * @return
+    */
+   public long getOps(int thread) {
+      return ops[thread];
+   }
+
+   public int getThreads() {
+      return threads;
+   }
+
+   /**
+    * Iterations per second, all threads
+    * @return
+    */
+   public double getThroughput() {
+      if (elapsedNanos <= 0) {
+         return 0;
+      }
+      return getTotalOps() * 1000000000.0 / elapsedNanos;
+   }
+
+   public long getTotalOps() {
+      return sum(ops);
+   }
+
+   public long getWaitedCount() {
+      return sum(waitedCount);
+   }
+
+   /**
+    * 
+    * @return -1 if not supported
+    */
+   public long getWaitedMillis() {
+      return waitedMillis[0] < 0 ? -1 : sum(waitedMillis);
+   }
+
+   //#mdebug
+   public void toString(Dctx dc) {
+      dc.root(this, StressResult.class, "@line5");
+      toStringPrivate(dc);
+      super.toString(dc.sup());
+      dc.nl();
+      dc.append("blocked count=" + getBlockedCount() + " ms=" + getBlockedMillis());
+      dc.append(" waited count=" + getWaitedCount() + " ms=" + getWaitedMillis());
+      dc.nl();
+      dc.append("fairness=" + BenchmarkResult.format(getFairness()) + " minOps=" + getMinOps() + " maxOps=" + getMaxOps());
+      for (int i = 0; i < threads; i++) {
+         dc.nl();
+         dc.append("#" + i + " ops=" + ops[i] + " blocked=" + blockedCount[i] + "/" + blockedMillis[i] + "ms waited=" + waitedCount[i] + "/" + waitedMillis[i] + "ms");
+      }
+   }
+
+   private void toStringPrivate(Dctx dc) {
+      dc.append(" threads=" + threads + " ops=" + getTotalOps() + " ops/s=" + BenchmarkResult.format(getThroughput()));
+   }
+
+   public void toString1Line(Dctx dc) {
+      dc.root1Line(this, StressResult.class);
+      toStringPrivate(dc);
+      super.toString1Line(dc.sup1Line());
+   }
+
+   //#enddebug
+
+}
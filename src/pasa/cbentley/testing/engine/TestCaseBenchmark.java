@@ -0,0 +1,258 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.IOException;
+
+import junit.framework.AssertionFailedError;
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * {@link TestCaseBentley} for microbenchmarks.
+ * <br>
+ * <br>
+ * {@link TestCaseBenchmark#benchmark(String, IBenchmarkOp)} runs an operation in process
+ * <li> Calibration: the batch size doubles until one batch lasts an iteration time
+ * <li> Warmup: {@link TestCaseBenchmark#getWarmupIterations()} batches, results discarded. Lets the JIT compile the operation
+ * <li> Measurement: {@link TestCaseBenchmark#getMeasureIterations()} batches, each giving one sample in nanos per operation
+ * <br>
+ * <br>
+ * Results computed by the operation must be given to the {@link Blackhole}, otherwise the JIT may remove their computation.
+ * <br>
+ * The {@link BenchmarkResult} is logged with {@link TestCaseBentley#logPrint(pasa.cbentley.core.src4.logging.IStringable)}.
+ * <br>
+ * <br>
+ * {@link TestCaseBenchmark#assertNotSlowerThanBaseline(String, IBenchmarkOp, double)} compares a measure with the baseline
+ * of the {@link PerfBaselineStore} of {@link TestCtx}. 
+ * 
+ * @author Charles Bentley
+ *
+ */
+public abstract class TestCaseBenchmark extends TestCaseBentley {
+
+   /**
+    * One sided 99% Student t critical values, index is degrees of freedom minus 1
+    */
+   private static final double[] T_99_ONE_SIDED    = { 31.821, 6.965, 4.541, 3.747, 3.365, 3.143, 2.998, 2.896, 2.821, 2.764, 2.718, 2.681, 2.650, 2.624, 2.602,
+         2.583, 2.567, 2.552, 2.539, 2.528, 2.518, 2.508, 2.500, 2.492, 2.485, 2.479, 2.473, 2.467, 2.462, 2.457 };
+
+   /**
+    * One sided 99% Student t critical value, above which a slowdown is not attributed to noise.
+    * <br>
+    * Fractional degrees of freedom are rounded down, which is conservative.
+    * @param df degrees of freedom, at least 1
+    * @return
+    */
+   public static double getCriticalT(double df) {
+      if (df < 1) {
+         df = 1;
+      }
+      if (df <= T_99_ONE_SIDED.length) {
+         return T_99_ONE_SIDED[(int) df - 1];
+      } else if (df < 40) {
+         return 2.457;
+      } else if (df < 60) {
+         return 2.423;
+      } else if (df < 120) {
+         return 2.390;
+      } else if (df < Double.POSITIVE_INFINITY) {
+         return 2.358;
+      }
+      return 2.326;
+   }
+
+   /**
+    * Welch-Satterthwaite degrees of freedom of the difference of two means
+    * @param var1 variance of sample 1
+    * @param n1 size of sample 1
+    * @param var2 variance of sample 2
+    * @param n2 size of sample 2
+    * @return {@link Double#POSITIVE_INFINITY} when both variances are 0
+    */
+   public static double getWelchDegrees(double var1, int n1, double var2, int n2) {
+      double a = var1 / n1;
+      double b = var2 / n2;
+      //a sample of 1 has no variance
+      double denominator = (n1 > 1 ? a * a / (n1 - 1) : 0) + (n2 > 1 ? b * b / (n2 - 1) : 0);
+      if (denominator == 0) {
+         return Double.POSITIVE_INFINITY;
+      }
+      return (a + b) * (a + b) / denominator;
+   }
+
+   private final Blackhole       bh                = new Blackhole();
+
+   private long                  iterationNanos    = 100L * 1000000L;
+
+   private int                   measureIterations = 10;
+
+   private int                   warmupIterations  = 5;
+
+   public TestCaseBenchmark() {
+      super();
+   }
+
+   /**
+    * Measures op and fails when it is slower than its baseline by more than tolerance.
+    * <br>
+    * The baseline is keyed by test class, test method and name. When missing, or when {@link ITechTesting#ENGINE_FLAG_01_UPDATE_BASELINES}
+    * is set, the measure is recorded as the baseline and the assertion passes.
+    * <br>
+    * The test fails only when both
+    * <li> mean nanos per operation exceeds the baseline mean by more than tolerance
+    * <li> the difference is statistically meaningful: Welch t statistic above the one sided 99% Student t critical value
+    * for the Welch-Satterthwaite degrees of freedom. See {@link TestCaseBenchmark#getCriticalT(double)}
+    * @param name
+    * @param op
+    * @param tolerance allowed slowdown ratio. 0.1 for 10%
+    * @return the measure
+    */
+   public BenchmarkResult assertNotSlowerThanBaseline(String name, IBenchmarkOp op, double tolerance) {
+      BenchmarkResult result = benchmark(name, op);
+      String key = getName() + "." + name;
+      String testClass = getClass().getName();
+      PerfBaselineStore store = tc.getBaselineStore();
+      PerfBaselineStore.Baseline baseline = store.get(testClass, key);
+      if (baseline == null || tc.hasEngineFlag(ENGINE_FLAG_01_UPDATE_BASELINES)) {
+         try {
+            store.put(testClass, key, result);
+         } catch (IOException e) {
+            throw new AssertionFailedError("Cannot record baseline " + key + " in " + store.getDir() + " : " + e.getMessage());
+         }
+         return result;
+      }
+      double mean = result.getMeanNanosPerOp();
+      double limit = baseline.getMean() * (1 + tolerance);
+      double var = square(result.getStdDevNanosPerOp());
+      double baseVar = square(baseline.getStdDev());
+      double se = Math.sqrt(var / result.getSampleCount() + baseVar / baseline.getN());
+      double t = se == 0 ? Double.POSITIVE_INFINITY : (mean - baseline.getMean()) / se;
+      double df = getWelchDegrees(var, result.getSampleCount(), baseVar, baseline.getN());
+      if (mean > limit && t > getCriticalT(df)) {
+         String msg = "Performance regression of " + key + " : " + BenchmarkResult.format(mean) + " ns/op against baseline " + BenchmarkResult.format(baseline.getMean());
+         msg += " ns/op. Limit is " + BenchmarkResult.format(limit) + " ns/op with tolerance " + tolerance + " t=" + BenchmarkResult.format(t) + " df=" + (Double.isInfinite(df) ? "inf" : BenchmarkResult.format(df));
+         fail(msg);
+      }
+      return result;
+   }
+
+   /**
+    * Measures run and fails when it is slower than its baseline by more than tolerance
+    * @param name
+    * @param run
+    * @param tolerance allowed slowdown ratio. 0.1 for 10%
+    * @return
+    * @see TestCaseBenchmark#assertNotSlowerThanBaseline(String, IBenchmarkOp, double)
+    */
+   public BenchmarkResult assertNotSlowerThanBaseline(String name, final Runnable run, double tolerance) {
+      return assertNotSlowerThanBaseline(name, new IBenchmarkOp() {
+         public void run(Blackhole bh) {
+            run.run();
+         }
+      }, tolerance);
+   }
+
+   /**
+    * Measures op and logs the result
+    * @param name
+    * @param op
+    * @return
+    */
+   public BenchmarkResult benchmark(String name, IBenchmarkOp op) {
+      long batch = calibrate(op);
+      for (int i = 0; i < warmupIterations; i++) {
+         long elapsed = runBatch(op, batch);
+         //adjust so that a batch lasts an iteration
+         batch = Math.max(1, (long) (batch * ((double) iterationNanos / Math.max(1, elapsed))));
+      }
+      //do not measure garbage of the warmup
+      System.gc();
+      double[] samples = new double[measureIterations];
+      for (int i = 0; i < measureIterations; i++) {
+         long elapsed = runBatch(op, batch);
+         samples[i] = (double) elapsed / batch;
+      }
+      BenchmarkResult result = new BenchmarkResult(uc, name, batch, samples);
+      logPrint(result);
+      return result;
+   }
+
+   /**
+    * Measures run
+    * @param name
+    * @param run
+    * @return
+    */
+   public BenchmarkResult benchmark(String name, final Runnable run) {
+      return benchmark(name, new IBenchmarkOp() {
+         public void run(Blackhole bh) {
+            run.run();
+         }
+      });
+   }
+
+   /**
+    * Doubles the batch size until a batch lasts at least an iteration
+    * @param op
+    * @return
+    */
+   private long calibrate(IBenchmarkOp op) {
+      long batch = 1;
+      long elapsed = runBatch(op, batch);
+      while (elapsed < iterationNanos && batch < (1L << 40)) {
+         batch *= 2;
+         elapsed = runBatch(op, batch);
+      }
+      return batch;
+   }
+
+   /**
+    * The sink given to operations
+    * @return
+    */
+   public Blackhole getBlackhole() {
+      return bh;
+   }
+
+   public long getIterationMillis() {
+      return iterationNanos / 1000000L;
+   }
+
+   public int getMeasureIterations() {
+      return measureIterations;
+   }
+
+   public int getWarmupIterations() {
+      return warmupIterations;
+   }
+
+   private static double square(double v) {
+      return v * v;
+   }
+
+   private long runBatch(IBenchmarkOp op, long n) {
+      Blackhole bh = this.bh;
+      long start = System.nanoTime();
+      for (long i = 0; i < n; i++) {
+         op.run(bh);
+      }
+      return System.nanoTime() - start;
+   }
+
+   /**
+    * 
+    * @param warmup number of warmup iterations
+    * @param measure number of measured iterations. At least 1
+    * @param iterationMillis target duration of an iteration
+    */
+   public void setBenchmarkIterations(int warmup, int measure, long iterationMillis) {
+      if (measure < 1 || warmup < 0 || iterationMillis < 1) {
+         throw new IllegalArgumentException("warmup=" + warmup + " measure=" + measure + " iterationMillis=" + iterationMillis);
+      }
+      this.warmupIterations = warmup;
+      this.measureIterations = measure;
+      this.iterationNanos = iterationMillis * 1000000L;
+   }
+}
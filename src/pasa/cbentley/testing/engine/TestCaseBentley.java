@@ -5,7 +5,20 @@
 package pasa.cbentley.testing.engine;
 
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.StringTokenizer;
+import java.util.TreeSet;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Rule;
 import org.junit.rules.TestName;
@@ -43,7 +56,15 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       return tr.wasSuccessful() + " Errors=" + tr.errorCount() + " Failures=" + tr.failureCount() + " Run=" + tr.runCount();
    }
 
-   private static int              count = 0;
+   /**
+    * Iterations taken at once by a thread of {@link TestCaseBentley#stressTest(int, long, IStressBody)}
+    */
+   private static final int        STRESS_BATCH = 64;
+
+   /**
+    * Number of instances created. Suites may create instances on several threads
+    */
+   private static final AtomicInteger count = new AtomicInteger();
 
    /**
     * Provides info about the current state.
@@ -55,6 +76,11 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
     */
    protected final boolean         f     = false;
 
+   /**
+    * Created by the first call to {@link TestCaseBentley#execute(Runnable...)} of a test method
+    */
+   private TestExecutor            executor;
+
    private InputStreamFactoryJUnit inputStreamFac;
 
    /**
@@ -64,7 +90,53 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
 
    private boolean                 isSetup;
 
-   private Integer                 lock  = new Integer(0);
+   /**
+    * Guards {@link TestCaseBentley#isLockReleased}, {@link TestCaseBentley#threadFailures}, latches and barriers
+    */
+   private final Object            lock  = new Object();
+
+   /**
+    * Set when enough {@link TestCaseBentley#lockRelease(String)}. Consumed by {@link TestCaseBentley#lockWait()}
+    */
+   private boolean                 isLockReleased;
+
+   /**
+    * Created with {@link TestCaseBentley#createLatch(int)}. Opened when a thread fails
+    */
+   private final List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+
+   /**
+    * Created with {@link TestCaseBentley#createBarrier(int)}. Broken when a thread fails
+    */
+   private final List<CyclicBarrier> barriers = new ArrayList<CyclicBarrier>();
+
+   /**
+    * Metrics of the current test method when {@link ITechTesting#TEST_FLAG_07_PRINT_METRICS}
+    */
+   private TestMetrics             metrics;
+
+   private ThreadLeakChecker       leakChecker;
+
+   /**
+    * True when threads of the test method were stuck in a deadlock or still running after the timeout.
+    * They are not waited for and may still write to the capture
+    */
+   private boolean                 isAbandoned;
+
+   /**
+    * True when the last run was reported from the {@link TestResultCache}
+    */
+   private boolean                 isCached;
+
+   /**
+    * Set when {@link TestCaseBentley#runBare()} completed without failure
+    */
+   private boolean                 isRunPassed;
+
+   /**
+    * Resources read through {@link InputStreamFactoryJUnit} by the current test method. Guarded by itself
+    */
+   private final TreeSet<String>   resourcesRead = new TreeSet<String>();
 
    /**
     * 
@@ -79,11 +151,31 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
 
    private int                     numLockRelease;
 
+   /**
+    * Pool the {@link UCtx} and {@link TestCtx} of this test come from. null if not pooled
+    */
+   private TestCtxPool             ctxPool;
+
+   /**
+    * Pooled pair of this test, given back at the end of the run
+    */
+   private TestCtxPool.Lease       ctxLease;
+
+   /**
+    * Routes {@link System#out} to the capture stream of the current thread
+    */
+   private final TestOutputRouter  router;
+
    /**
     * Initiliazed with System.out
     */
    private static PrintStream      standardOut;
 
+   /**
+    * Recycles unbounded capture streams across test methods
+    */
+   private static CaptureStreamPool capturePool;
+
    /**
     * Sugar for easy true
     */
@@ -94,7 +186,10 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
     */
    protected TestCtx               tc;
 
-   private AssertionFailedError    threadFailure;
+   /**
+    * Failures of all worker threads of the test method, in order
+    */
+   private final List<Throwable>   threadFailures = new ArrayList<Throwable>();
 
    protected UCtx                  uc;
 
@@ -112,47 +207,246 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
     * @param testFlags
     */
    public TestCaseBentley() {
-      //save original System.out
-      //you can only trust System.out on the first run so use a static private field
-      if (standardOut == null) {
-         standardOut = System.out;
-      }
+      router = initStandardOut();
       //System.out.println("hashCode of System.out = " + standardOut.hashCode() + " ");
       //this constructor is instantiated twice for a single method test
       //no way to avoid.. simply hugh loggers 
-      lpsOutConstructor = LoggedPrintStream.create(uc, standardOut);
-      System.setOut(lpsOutConstructor);
+      lpsOutConstructor = capturePool.acquire(uc);
+      router.bind(lpsOutConstructor);
       isCurrentOutStandard = false;
       //print to the init Printstream.
       //so in order to completely white out the system out 
 
       //we switch out asap
 
-      count++;
+      int instance = count.incrementAndGet();
 
       //System.out.println("TestCaseBentley");
-      IConfigU configu = createConfigU();
-      if (configu == null) {
-         uc = new UCtx();
+      if (isCtxPoolable()) {
+         ctxPool = TestCtxPool.getCurrent();
+      }
+      TestCtxPool.Lease lease = null;
+      if (ctxPool != null) {
+         lease = ctxPool.acquire(getClass());
+      }
+      if (lease != null) {
+         uc = lease.getUCtx();
       } else {
-         uc = new UCtx(configu, "TestCase_" + count);
+         IConfigU configu = createConfigU();
+         if (configu == null) {
+            uc = new UCtx();
+         } else {
+            uc = new UCtx(configu, "TestCase_" + instance);
+         }
       }
 
       //#debug
       lpsOutConstructor.toStringSetUCtx(uc);
 
-      initCtxBeforeTestFramworkCtxCreation();
-      tc = createTestCtx();
+      if (lease != null) {
+         //uc was initialized by the test that created the pair
+         tc = lease.getTestCtx();
+      } else {
+         initCtxBeforeTestFramworkCtxCreation();
+         tc = createTestCtx();
+         if (ctxPool != null) {
+            lease = new TestCtxPool.Lease(uc, tc);
+         }
+      }
+      ctxLease = lease;
+   }
+
+   /**
+    * When true and the test is created by a {@link TestSuiteBentley} with a {@link TestCtxPool},
+    * {@link UCtx} and {@link TestCtx} are taken from the pool and given back at the end of {@link TestCaseBentley#run(TestResult)}.
+    * <br>
+    * Sub classes whose {@link TestCaseBentley#createTestCtx()} keeps state specific to one instance return false.
+    * <br>
+    * Called in the constructor.
+    * @return
+    */
+   protected boolean isCtxPoolable() {
+      return true;
+   }
+
+   /**
+    * The {@link TestOutputRouter} installed as {@link System#out}. Installs it if no test was created yet.
+    * @return
+    */
+   public static TestOutputRouter getOutputRouter() {
+      return initStandardOut();
+   }
 
+   /**
+    * Saves the original System.out and installs the {@link TestOutputRouter} in its place.
+    * <br>
+    * You can only trust System.out on the first run so use a static private field
+    * @return
+    */
+   private static synchronized TestOutputRouter initStandardOut() {
+      if (standardOut == null) {
+         standardOut = System.out;
+         capturePool = new CaptureStreamPool(standardOut, 32);
+      }
+      return TestOutputRouter.install(standardOut);
    }
 
    /**
     * Called before {@link TestCaseBentley#createTestCtx()} in the constructor but with UC created
+    * <br>
+    * Not called when the {@link UCtx} comes from a {@link TestCtxPool}. It was called by the test that created it.
     */
    protected void initCtxBeforeTestFramworkCtxCreation() {
 
    }
 
+   /**
+    * Fails when run allocates more than bytesPerOp bytes per call, once warmed up.
+    * <br>
+    * See {@link AllocationMeter}.
+    * <br>
+    * Fails when the JVM cannot count allocations, unless {@link ITechTesting#ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS} is set.
+    * The check is then skipped and logged.
+    * @param bytesPerOp
+    * @param run
+    */
+   public void assertAllocatesAtMost(long bytesPerOp, Runnable run) {
+      AllocationMeter meter = new AllocationMeter();
+      if (!meter.isSupported()) {
+         if (!tc.hasEngineFlag(ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS)) {
+            fail("Allocation counting not supported by this JVM. Set ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS to skip allocation checks");
+         }
+         //#debug
+         toDLog().pTest("Allocation counting not supported. Not checked", null, TestCaseBentley.class, "assertAllocatesAtMost", ITechLvl.LVL_05_FINE, true);
+         return;
+      }
+      double measured = meter.measureBytesPerOp(run, AllocationMeter.WARMUP_DEFAULT, AllocationMeter.OPS_DEFAULT);
+      if (measured > bytesPerOp) {
+         fail("Allocated " + measured + " bytes/op. Expected at most " + bytesPerOp + " bytes/op");
+      }
+   }
+
+   /**
+    * Runs body iterations times in total on threads threads, released together from a barrier.
+    * <br>
+    * Threads take iterations in small batches from a shared counter until all are taken or a thread fails.
+    * Violations reported with {@link TestCaseBentley#threadAssertEquals(int, int)} and the other thread asserts
+    * fail the test as soon as they happen.
+    * <br>
+    * The {@link StressResult} with throughput, contention and fairness is logged.
+    * <br>
+    * There is no deadline. A stress test that hangs is stopped by {@link TestCtx#getTestTimeoutMillis()} or, when enabled, the {@link TestWatchdog}.
+    * @param threads
+    * @param iterations total for all threads
+    * @param body
+    * @return
+    */
+   public StressResult stressTest(int threads, long iterations, IStressBody body) {
+      return stressTest(threads, iterations, Long.MAX_VALUE, body);
+   }
+
+   /**
+    * {@link TestCaseBentley#stressTest(int, long, IStressBody)} failing when all iterations are not done after millis
+    * @param threads
+    * @param iterations total for all threads
+    * @param millis
+    * @param body
+    * @return
+    */
+   public StressResult stressTest(int threads, final long iterations, long millis, final IStressBody body) {
+      final StressResult result = new StressResult(uc, threads);
+      final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      boolean isContention = bean.isThreadContentionMonitoringSupported();
+      boolean wasContention = isContention && bean.isThreadContentionMonitoringEnabled();
+      if (isContention && !wasContention) {
+         bean.setThreadContentionMonitoringEnabled(true);
+      }
+      final AtomicLong next = new AtomicLong();
+      final long[] starts = new long[threads];
+      final long[] ends = new long[threads];
+      Runnable[] runs = new Runnable[threads];
+      for (int i = 0; i < threads; i++) {
+         final int index = i;
+         runs[i] = new Runnable() {
+            public void run() {
+               long id = Thread.currentThread().getId();
+               ThreadInfo before = bean.getThreadInfo(id);
+               starts[index] = System.nanoTime();
+               long ops = 0;
+               while (true) {
+                  long from = next.getAndAdd(STRESS_BATCH);
+                  if (from >= iterations || hasThreadFailures()) {
+                     break;
+                  }
+                  long to = Math.min(from + STRESS_BATCH, iterations);
+                  for (long it = from; it < to; it++) {
+                     body.run(index, it);
+                  }
+                  ops += to - from;
+               }
+               ends[index] = System.nanoTime();
+               ThreadInfo after = bean.getThreadInfo(id);
+               result.ops[index] = ops;
+               result.blockedCount[index] = after.getBlockedCount() - before.getBlockedCount();
+               result.waitedCount[index] = after.getWaitedCount() - before.getWaitedCount();
+               if (after.getBlockedTime() < 0) {
+                  result.blockedMillis[index] = -1;
+                  result.waitedMillis[index] = -1;
+               } else {
+                  result.blockedMillis[index] = after.getBlockedTime() - before.getBlockedTime();
+                  result.waitedMillis[index] = after.getWaitedTime() - before.getWaitedTime();
+               }
+            }
+         };
+      }
+      try {
+         executeTogether(millis, runs);
+      } finally {
+         if (isContention && !wasContention) {
+            bean.setThreadContentionMonitoringEnabled(false);
+         }
+      }
+      long start = starts[0];
+      long end = ends[0];
+      for (int i = 1; i < threads; i++) {
+         start = Math.min(start, starts[i]);
+         end = Math.max(end, ends[i]);
+      }
+      result.elapsedNanos = end - start;
+      //#debug
+      toDLog().pTest("", result, TestCaseBentley.class, "stressTest", LVL_05_FINE, false);
+      return result;
+   }
+
+   /**
+    * Fails when the value at percentile of h is above maxNanos.
+    * <br>
+    * p99 under 200us : <code>assertPercentileAtMost(h, 99, 200000)</code>
+    * @param h
+    * @param percentile 0 to 100
+    * @param maxNanos
+    */
+   public void assertPercentileAtMost(LatencyHistogram h, double percentile, long maxNanos) {
+      if (h.getTotalCount() == 0) {
+         fail("Histogram is empty");
+      }
+      long value = h.getValueAtPercentile(percentile);
+      if (value > maxNanos) {
+         fail("p" + percentile + "=" + value + "ns above " + maxNanos + "ns " + h.toString1Line());
+      }
+   }
+
+   /**
+    * Fails when run allocates once warmed up.
+    * <br>
+    * Like {@link TestCaseBentley#assertAllocatesAtMost(long, Runnable)}, fails when the JVM cannot count allocations
+    * unless {@link ITechTesting#ENGINE_FLAG_06_SKIP_ALLOC_ASSERTS} is set
+    * @param run
+    */
+   public void assertNoAllocation(Runnable run) {
+      assertAllocatesAtMost(0, run);
+   }
+
    public void assertEquals(boolean b, Boolean val) {
       assertNotNull(val);
       assertEquals(b, val.booleanValue());
@@ -206,9 +500,8 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          assertNotNull(o);
       } catch (AssertionFailedError e) {
          //notify waiting thread and throw exception
-         threadFailure = e;
-         lockRelease("Assertion Failure In Thread.");
-         throw threadFailure;
+         addThreadFailure(e);
+         throw e;
       }
    }
 
@@ -221,9 +514,8 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          assertFalse(message, true);
       } catch (AssertionFailedError e) {
          //notify waiting thread and throw exception
-         threadFailure = e;
-         lockRelease("Assertion Failure In Thread.");
-         throw threadFailure;
+         addThreadFailure(e);
+         throw e;
       }
    }
 
@@ -283,6 +575,32 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       }
    }
 
+   /**
+    * Creates the stream capturing the test method output.
+    * <br>
+    * Unbounded streams come from a pool shared by all tests. Others use {@link TestCaseBentley#createCaptureBuffer()}
+    * @return
+    */
+   protected LoggedPrintStream createCaptureStream() {
+      if (tc.getCaptureType() == CAPTURE_TYPE_0_UNBOUNDED) {
+         return capturePool.acquire(uc);
+      }
+      return LoggedPrintStream.create(uc, standardOut, createCaptureBuffer());
+   }
+
+   /**
+    * Creates the storage of the test method output as configured by {@link TestCtx#getCaptureType()}
+    * @return
+    */
+   protected ICaptureBuffer createCaptureBuffer() {
+      if (tc.getCaptureType() == CAPTURE_TYPE_1_HEAD_TAIL) {
+         return new CaptureBufferHeadTail(tc.getCaptureHeadSize(), tc.getCaptureTailSize());
+      } else if (tc.getCaptureType() == CAPTURE_TYPE_2_SPILL) {
+         return new CaptureBufferSpill(tc.getCaptureSpillHeapSize(), tc.getCaptureSpillDir());
+      }
+      return new CaptureBufferChunked();
+   }
+
    protected IConfigU createConfigU() {
       ConfigUTest config = new ConfigUTest();
       ILogConfigurator configurator = createLogConfigurator();
@@ -312,7 +630,7 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
     * This method is called at the end of a testMethod when adding failures or errors.
     * <br>
     * <br>
-    * 
+    * Captured bytes are replayed as is. Spilled output is transferred from its file.
     */
    public void printTestStream() {
       if (hasTestFlag(TEST_FLAG_08_DEBUG_METHOD_NAMES)) {
@@ -321,11 +639,14 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       //only special print action if
       if (lpsOutTest != null) {
          if (!isCurrentOutStandard) {
-            System.setOut(standardOut); //give back
+            router.unbind(); //give back
             isCurrentOutStandard = true;
          }
-         String str = lpsOutTest.getBufferString();
-         standardOut.println(str);
+         PrintStream console = router.getConsole();
+         lpsOutTest.flush();
+         console.flush();
+         lpsOutTest.printAll(console);
+         console.println();
          lpsOutTest.resetBuf();
       }
    }
@@ -338,21 +659,293 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
 
          if (!isCurrentOutStandard) {
             //if not already
-            System.setOut(standardOut); //give back
+            router.unbind(); //give back
             isCurrentOutStandard = true;
          }
          String str = lpsOutConstructor.getBufferString();
-         standardOut.println(str);
+         router.getConsole().println(str);
          lpsOutConstructor.resetBuf();
       }
    }
 
+   /**
+    * Runs op at rate operations per second on threads threads during durationMillis. See {@link LoadGenerator}.
+    * <br>
+    * The result is logged. Use {@link TestCaseBentley#assertPercentileAtMost(LatencyHistogram, double, long)}
+    * on {@link LoadResult#getResponseTimes()} for service level assertions.
+    * @param rate
+    * @param threads
+    * @param durationMillis
+    * @param op
+    * @return
+    */
+   public LoadResult load(double rate, int threads, long durationMillis, Runnable op) {
+      LoadGenerator gen = new LoadGenerator(uc, rate, threads, durationMillis);
+      LoadResult result = null;
+      try {
+         result = gen.run(op);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         fail("Interrupted while generating load");
+      }
+      //#debug
+      toDLog().pTest("", result, TestCaseBentley.class, "load", LVL_05_FINE, false);
+      return result;
+   }
+
+   /**
+    * Records the failure of a worker thread.
+    * <br>
+    * Wakes up {@link TestCaseBentley#lockWait()}, opens the latches and breaks the barriers of the test method
+    * so that the test thread fails without waiting out a timeout.
+    * <br>
+    * A party failing because its barrier was broken is not recorded when a failure is already there. It is a consequence of that failure.
+    * @param e
+    */
+   public void addThreadFailure(Throwable e) {
+      CountDownLatch[] toOpen;
+      CyclicBarrier[] toBreak;
+      synchronized (lock) {
+         boolean isConsequence = e.getCause() instanceof BrokenBarrierException && !threadFailures.isEmpty();
+         if (!isConsequence && !threadFailures.contains(e)) {
+            threadFailures.add(e);
+         }
+         lock.notifyAll();
+         toOpen = latches.toArray(new CountDownLatch[latches.size()]);
+         toBreak = barriers.toArray(new CyclicBarrier[barriers.size()]);
+      }
+      for (CountDownLatch latch : toOpen) {
+         while (latch.getCount() > 0) {
+            latch.countDown();
+         }
+      }
+      for (CyclicBarrier barrier : toBreak) {
+         barrier.reset();
+      }
+   }
+
+   /**
+    * Throws the failures of the worker threads, if any.
+    * <br>
+    * A single failure is thrown as is. Several are summed up in one {@link AssertionFailedError}
+    */
+   public void assertNoThreadFailures() {
+      Throwable e = getThreadFailure();
+      if (e instanceof Error) {
+         throw (Error) e;
+      } else if (e instanceof RuntimeException) {
+         throw (RuntimeException) e;
+      } else if (e != null) {
+         AssertionFailedError a = new AssertionFailedError("Failure in thread " + e);
+         a.initCause(e);
+         throw a;
+      }
+   }
+
+   /**
+    * Waits for latch to reach zero.
+    * <br>
+    * Returns as soon as the last party counts down. Fails on timeout or when a thread failed.
+    * @param latch
+    * @param millis
+    */
+   public void awaitLatch(CountDownLatch latch, long millis) {
+      boolean isOpen = false;
+      try {
+         isOpen = latch.await(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      assertNoThreadFailures();
+      if (!isOpen) {
+         fail("Latch not opened after " + millis + "ms. Count is " + latch.getCount());
+      }
+   }
+
+   /**
+    * Waits at barrier for the other parties. Called by worker threads.
+    * <br>
+    * Fails when the barrier is broken, because a party failed or timed out.
+    * @param barrier
+    * @param millis
+    */
+   public void awaitBarrier(CyclicBarrier barrier, long millis) {
+      try {
+         barrier.await(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         fail("Interrupted at barrier");
+      } catch (BrokenBarrierException e) {
+         AssertionFailedError a = new AssertionFailedError("Barrier broken");
+         a.initCause(e);
+         throw a;
+      } catch (TimeoutException e) {
+         fail("Barrier not reached by all " + barrier.getParties() + " parties after " + millis + "ms");
+      }
+   }
+
+   private void clearThreadFailures() {
+      synchronized (lock) {
+         threadFailures.clear();
+         latches.clear();
+         barriers.clear();
+         isLockReleased = false;
+      }
+   }
+
+   /**
+    * Barrier of the test method, broken when a worker thread fails
+    * @param parties
+    * @return
+    */
+   public CyclicBarrier createBarrier(int parties) {
+      CyclicBarrier barrier = new CyclicBarrier(parties);
+      synchronized (lock) {
+         barriers.add(barrier);
+      }
+      return barrier;
+   }
+
+   /**
+    * Latch of the test method, opened when a worker thread fails
+    * @param count
+    * @return
+    */
+   public CountDownLatch createLatch(int count) {
+      CountDownLatch latch = new CountDownLatch(count);
+      synchronized (lock) {
+         latches.add(latch);
+      }
+      return latch;
+   }
+
+   /**
+    * Starts all runs at the same time on threads of the test method and waits until the last one is done.
+    * <br>
+    * Fails as soon as one run fails, or after millis.
+    * @param millis
+    * @param runs
+    */
+   public void executeTogether(long millis, final Runnable... runs) {
+      final CyclicBarrier start = createBarrier(runs.length);
+      final CountDownLatch done = createLatch(runs.length);
+      final long barrierMillis = millis;
+      for (final Runnable run : runs) {
+         execute(new Runnable() {
+            public void run() {
+               awaitBarrier(start, barrierMillis);
+               run.run();
+               done.countDown();
+            }
+         });
+      }
+      awaitLatch(done, millis);
+   }
+
+   /**
+    * Single failure or summary of the failures of the worker threads
+    * @return null if none
+    */
+   private Throwable getThreadFailure() {
+      synchronized (lock) {
+         if (threadFailures.isEmpty()) {
+            return null;
+         }
+         if (threadFailures.size() == 1) {
+            return threadFailures.get(0);
+         }
+         StringBBuilder sb = new StringBBuilder(uc);
+         sb.append(threadFailures.size());
+         sb.append(" failures in threads.");
+         for (Throwable e : threadFailures) {
+            sb.append(' ');
+            sb.append(e.toString());
+         }
+         AssertionFailedError a = new AssertionFailedError(sb.toString());
+         a.initCause(threadFailures.get(0));
+         return a;
+      }
+   }
+
+   private boolean hasThreadFailures() {
+      synchronized (lock) {
+         return !threadFailures.isEmpty();
+      }
+   }
+
+   /**
+    * Copy of the failures of all the worker threads of the test method
+    * @return
+    */
+   public List<Throwable> getThreadFailures() {
+      synchronized (lock) {
+         return new ArrayList<Throwable>(threadFailures);
+      }
+   }
+
+   /**
+    * Runs each runnable on a thread of the {@link TestExecutor} of the test method.
+    * The runnables write to the capture of the test.
+    * <br>
+    * {@link TestCaseBentley#runBare()} waits for them at the end of the test method.
+    * Any throwable of a runnable fails the test.
+    * @param runs
+    */
    public void execute(Runnable... runs) {
-      for (Runnable run : runs) {
-         new Thread(run).start();
+      synchronized (this) {
+         if (executor == null) {
+            executor = new TestExecutor(uc, getName());
+         }
+      }
+      for (final Runnable run : runs) {
+         executor.execute(router.propagate(new Runnable() {
+            public void run() {
+               try {
+                  run.run();
+               } catch (RuntimeException e) {
+                  addThreadFailure(e);
+                  throw e;
+               } catch (Error e) {
+                  addThreadFailure(e);
+                  throw e;
+               }
+            }
+         }));
       }
    }
 
+   /**
+    * Metrics of the last test method run, measured from {@link TestCaseBentley#setUp()} to {@link TestCaseBentley#tearDown()}
+    * @return null unless {@link ITechTesting#TEST_FLAG_07_PRINT_METRICS} is set
+    */
+   public TestMetrics getMetrics() {
+      return metrics;
+   }
+
+   /**
+    * Called by {@link InputStreamFactoryJUnit}. The content of the resource becomes part of the {@link TestResultCache} fingerprint
+    * @param name
+    */
+   void addResourceRead(String name) {
+      synchronized (resourcesRead) {
+         resourcesRead.add(name);
+      }
+   }
+
+   /**
+    * Hash of the code and flags of this test for the {@link TestResultCache}
+    * @return null when the class cannot be hashed
+    */
+   private String getCodeHash() {
+      String hash = BytecodeHasher.hash(getClass());
+      if (hash == null) {
+         return null;
+      }
+      //scheduling flags do not change results
+      int engineFlags = tc.getEngineFlags() & ~(ENGINE_FLAG_04_FAILED_FIRST | ENGINE_FLAG_05_FORCE_FULL_RUN);
+      return hash + "-" + Integer.toHexString(tc.getTestFlags()) + "-" + Integer.toHexString(engineFlags);
+   }
+
    public IInputStreamFactory getInputStreamFactory() {
       if (inputStreamFac == null) {
          inputStreamFac = new InputStreamFactoryJUnit(tc, this);
@@ -383,6 +976,14 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       return true;
    }
 
+   /**
+    * True once {@link TestCaseBentley#setUp()} has been called. {@link TestCtx} cannot be changed anymore
+    * @return
+    */
+   public boolean isSetup() {
+      return isSetup;
+   }
+
    public boolean isRunningDebug() {
       return java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments().toString().indexOf("-agentlib:jdwp") > 0;
 
@@ -398,49 +999,55 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          if (numLockRelease <= 0) {
             //#debug
             toDLog().pTest(message, null, TestCaseBentley.class, "lockRelease", ITechLvl.LVL_04_FINER, true);
+            isLockReleased = true;
             lock.notifyAll();
          }
       }
    }
 
    /**
-    * 
+    * Waits until a call to {@link TestCaseBentley#lockRelease(String)} releases the lock or a thread fails.
+    * <br>
+    * A release done before the wait is not missed.
+    * <br>
+    * Throws the failures of {@link TestCaseBentley#getThreadFailures()}
     */
    public void lockWait() {
-      synchronized (lock) {
-         try {
-            lock.wait();
-         } catch (InterruptedException e) {
-            e.printStackTrace();
-         }
-      }
+      lockWait(0, "");
    }
 
    /**
     * Waits for millis until a call to {@link TestCaseBentley#lockRelease(String)}
     * <br>
-    * throws any assert failure set to {@link TestCaseBentley#threadFailure}
+    * throws the failures of {@link TestCaseBentley#getThreadFailures()}
     * when a thread fails an assert
-    * @param millis
+    * @param millis 0 to wait without timeout
     * @param message
     */
    public void lockWait(long millis, String message) {
       synchronized (lock) {
          //check if we have an assertion
-         if (threadFailure != null) {
-            throw threadFailure;
-         }
+         assertNoThreadFailures();
+         //#debug
+         toDLog().pTest(message, null, TestCaseBentley.class, "lockWait", ITechLvl.LVL_04_FINER, true);
+         long deadline = System.currentTimeMillis() + millis;
          try {
-            //#debug
-            toDLog().pTest(message, null, TestCaseBentley.class, "lockWait", ITechLvl.LVL_04_FINER, true);
-            lock.wait(millis);
+            while (!isLockReleased && threadFailures.isEmpty()) {
+               if (millis == 0) {
+                  lock.wait();
+               } else {
+                  long left = deadline - System.currentTimeMillis();
+                  if (left <= 0) {
+                     break;
+                  }
+                  lock.wait(left);
+               }
+            }
          } catch (InterruptedException e) {
             e.printStackTrace();
          }
-
-         if (threadFailure != null) {
-            throw threadFailure;
-         }
+         isLockReleased = false;
+         assertNoThreadFailures();
       }
    }
 
@@ -475,6 +1082,19 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       if (hasTestFlag(TEST_FLAG_08_DEBUG_METHOD_NAMES)) {
          System.out.println("#TestCaseBentley#run name=" + getName() + " isDebug=" + isDebug + " TestResult=" + debugResult(tr));
       }
+      TestResultCache cache = tc.getResultCache();
+      String codeHash = cache == null ? null : getCodeHash();
+      String cacheKey = getClass().getName() + "#" + getName();
+      isCached = false;
+      if (codeHash != null && !tc.hasEngineFlag(ENGINE_FLAG_05_FORCE_FULL_RUN) && cache.isPassed(cacheKey, codeHash, getClass())) {
+         isCached = true;
+         //#debug
+         toDLog().pTest("Cached " + getName(), null, TestCaseBentley.class, "run", LVL_05_FINE, true);
+         tr.startTest(this);
+         tr.endTest(this);
+         releaseRun();
+         return;
+      }
       if (hasTestFlag(TEST_FLAG_02_NO_DEBUG_SPECIFICS)) {
          isDebug = false;
       } else {
@@ -493,19 +1113,21 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       }
 
       if (hasTestFlag(TEST_FLAG_03_HIDE_OUT_SUCCESSES)) {
-         lpsOutTest = LoggedPrintStream.create(uc, standardOut);
-         System.setOut(lpsOutTest);
+         lpsOutTest = createCaptureStream();
+         router.bind(lpsOutTest);
          isCurrentOutStandard = false;
          if (!hasTestFlag(TEST_FLAG_05_SHOW_OUT_INIT)) {
+            capturePool.release(lpsOutConstructor);
             lpsOutConstructor = null;
          }
       } else {
-         System.setOut(standardOut);
+         router.unbind();
          isCurrentOutStandard = true;
          if (hasTestFlag(TEST_FLAG_01_PRINT_ANYWAYS) || hasTestFlag(TEST_FLAG_05_SHOW_OUT_INIT)) {
             printConstructorStream();
          } else {
             //erase it from memory
+            capturePool.release(lpsOutConstructor);
             lpsOutConstructor = null;
          }
       }
@@ -514,8 +1136,52 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          currentTestResult = tr;
          //currentTr.addListener(new TG());
       }
-      super.run(tr);
+      isRunPassed = false;
+      synchronized (resourcesRead) {
+         resourcesRead.clear();
+      }
+      try {
+         super.run(tr);
+         if (codeHash != null) {
+            List<String> resources;
+            synchronized (resourcesRead) {
+               resources = new ArrayList<String>(resourcesRead);
+            }
+            cache.record(cacheKey, codeHash, getClass(), resources, isRunPassed && !isAbandoned);
+         }
+      } finally {
+         releaseRun();
+      }
+
+   }
+
+   /**
+    * True when the last {@link TestCaseBentley#run(TestResult)} reported this test from the {@link TestResultCache} without running it
+    * @return
+    */
+   public boolean isCached() {
+      return isCached;
+   }
 
+   /**
+    * Releases the context lease and the captures at the end of {@link TestCaseBentley#run(TestResult)}
+    */
+   private void releaseRun() {
+      //next test on this thread starts from the standard output
+      router.unbind();
+      isCurrentOutStandard = true;
+      //an abandoned thread may still use the context
+      if (ctxLease != null && !isAbandoned) {
+         ctxPool.release(getClass(), ctxLease);
+      }
+      ctxLease = null;
+      //no thread writes to them anymore, unless threads were abandoned
+      if (!isAbandoned) {
+         capturePool.release(lpsOutTest);
+      }
+      lpsOutTest = null;
+      capturePool.release(lpsOutConstructor);
+      lpsOutConstructor = null;
    }
 
    /**
@@ -526,15 +1192,157 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          System.out.println("#TestCaseBentley#runBare");
       }
 
+      //started by setUp on the thread running the test method
+      metrics = null;
+      if (tc.getParallelMode() == PARALLEL_0_NONE && tc.hasEngineFlag(ENGINE_FLAG_02_CHECK_THREAD_LEAKS)) {
+         leakChecker = new ThreadLeakChecker();
+         leakChecker.start();
+      } else {
+         leakChecker = null;
+      }
+      isAbandoned = false;
       try {
-         super.runBare();
-      } catch (Throwable e) {
-         tearDownError();
-         //e.printStackTrace();
-         throw e;
+         Throwable failure = runBody();
+         Throwable threadsFailure = joinThreads();
+         if (failure == null) {
+            failure = threadsFailure;
+         }
+         if (failure != null) {
+            tearDownError();
+            //e.printStackTrace();
+            throw failure;
+         }
+      } finally {
+         releaseCaptures();
       }
 
       tearDownNoError();
+      isRunPassed = true;
+   }
+
+   /**
+    * Runs set up, test and tear down, with a {@link TestWatchdog} when {@link ITechTesting#ENGINE_FLAG_03_WATCHDOG} is set.
+    * <br>
+    * When {@link TestCtx#getTestTimeoutMillis()} is set, they run on a body thread. The calling thread gives up
+    * on it after the timeout or when a deadlock is detected.
+    * @return failure, null if none
+    */
+   private Throwable runBody() {
+      TestWatchdog watchdog = null;
+      if (tc.hasEngineFlag(ENGINE_FLAG_03_WATCHDOG)) {
+         watchdog = new TestWatchdog(this, lpsOutTest != null ? lpsOutTest : router.getConsole());
+      }
+      long timeout = tc.getTestTimeoutMillis();
+      if (timeout <= 0) {
+         if (watchdog != null) {
+            watchdog.start(Thread.currentThread());
+         }
+         try {
+            super.runBare();
+         } catch (Throwable e) {
+            return e;
+         } finally {
+            if (watchdog != null) {
+               watchdog.stop();
+               if (watchdog.isFired()) {
+                  //clears the interrupt of the watchdog
+                  Thread.interrupted();
+                  isAbandoned = true;
+               }
+            }
+         }
+         return null;
+      }
+      final Throwable[] bodyFailure = new Throwable[1];
+      Thread body = new Thread(router.propagate(new Runnable() {
+         public void run() {
+            try {
+               TestCaseBentley.super.runBare();
+            } catch (Throwable e) {
+               bodyFailure[0] = e;
+            }
+         }
+      }), getName() + "-body");
+      body.setDaemon(true);
+      body.start();
+      if (watchdog != null) {
+         watchdog.start(body);
+      }
+      long deadline = System.currentTimeMillis() + timeout;
+      try {
+         while (body.isAlive()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || (watchdog != null && watchdog.isFired())) {
+               break;
+            }
+            body.join(Math.min(left, TestWatchdog.PERIOD_DEFAULT));
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } finally {
+         if (watchdog != null) {
+            watchdog.stop();
+         }
+      }
+      if (!body.isAlive()) {
+         return bodyFailure[0];
+      }
+      isAbandoned = true;
+      if (watchdog != null && watchdog.isFired()) {
+         return getThreadFailure();
+      }
+      String message = "Test " + getName() + " timed out after " + timeout + "ms";
+      TestWatchdog.dumpThreads(lpsOutTest != null ? lpsOutTest : router.getConsole(), message);
+      body.interrupt();
+      return new AssertionFailedError(message);
+   }
+
+   /**
+    * Waits for the runnables of {@link TestCaseBentley#execute(Runnable...)} and checks for leaked threads
+    * @return failure of the threads, null if none
+    */
+   private Throwable joinThreads() {
+      Throwable failure = null;
+      TestExecutor ex;
+      synchronized (this) {
+         ex = executor;
+         executor = null;
+      }
+      if (ex != null) {
+         //stuck threads are not waited for
+         failure = ex.shutdownAndJoin(isAbandoned ? 0 : tc.getExecutorJoinMillis());
+      }
+      Throwable reported = getThreadFailure();
+      if (reported != null) {
+         //failures of all threads, not only those of the executor
+         failure = reported;
+      }
+      if (leakChecker != null && !isAbandoned) {
+         List<Thread> leaks = leakChecker.check(ThreadLeakChecker.GRACE_DEFAULT);
+         leakChecker = null;
+         if (!leaks.isEmpty() && failure == null) {
+            StringBBuilder sb = new StringBBuilder(uc);
+            sb.append("Leaked threads:");
+            for (Thread t : leaks) {
+               sb.append(' ');
+               sb.append(t.getName());
+            }
+            failure = new AssertionFailedError(sb.toString());
+         }
+      }
+      return failure;
+   }
+
+   /**
+    * Frees the resources of the test method capture, like spill files, as soon as the test method is done.
+    * <br>
+    * Pooled captures are left to {@link CaptureStreamPool#release(LoggedPrintStream)}, which keeps their chunks for the next test.
+    */
+   private void releaseCaptures() {
+      //an abandoned thread may still write to it
+      if (lpsOutTest != null && !isAbandoned && !capturePool.isPooled(lpsOutTest)) {
+         lpsOutTest.release();
+      }
    }
 
    public void setEnableThreadName(boolean b) {
@@ -550,7 +1358,10 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
    }
 
    protected void setNunLockReleased(int num) {
-      numLockRelease = num;
+      synchronized (lock) {
+         numLockRelease = num;
+         isLockReleased = false;
+      }
    }
 
    /**
@@ -560,6 +1371,9 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
     * May provide various different context configurations. etc.
     * 
     * Cannot be set once setup method has been called.
+    * <br>
+    * When the {@link TestCtx} comes from a {@link TestCtxPool}, the settings of tc are copied into it.
+    * It stays paired with the pooled {@link UCtx}.
     * @param tc cannot be null
     */
    public void setTestCtx(TestCtx tc) {
@@ -569,7 +1383,11 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
       if (isSetup) {
          throw new IllegalStateException("Cannot set TestCtx once setup has been called");
       }
-      this.tc = tc;
+      if (ctxLease != null) {
+         this.tc.copyConfigFrom(tc);
+      } else {
+         this.tc = tc;
+      }
    }
 
    public void setTestFlag(int flag, boolean v) {
@@ -593,8 +1411,13 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          System.out.println("#TestCaseBentley#setUp. Calling method setupAbstract()");
       }
       isSetup = true;
-      threadFailure = null;
+      clearThreadFailures();
 
+      if (hasTestFlag(TEST_FLAG_07_PRINT_METRICS)) {
+         //cpu time and allocations are measured on this thread, stopped by tearDown on the same thread
+         metrics = new TestMetrics(uc);
+         metrics.start();
+      }
       tc.setTestCase(this);
       setupAbstract();
    }
@@ -628,6 +1451,12 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          toDLog().pTest("", new TestResultStringable(uc, currentTestResult), TestCaseBentley.class, "tearDown", LVL_05_FINE, false);
       }
 
+      if (metrics != null) {
+         metrics.stop();
+         //#debug
+         toDLog().pTest(getName(), metrics, TestCaseBentley.class, "tearDown", LVL_05_FINE, false);
+      }
+
    }
 
    private void tearDownError() {
@@ -663,9 +1492,24 @@ public abstract class TestCaseBentley extends TestCase implements IStringable, I
          assertEquals(ex, d);
       } catch (AssertionFailedError e) {
          //notify waiting thread and throw exception
-         threadFailure = e;
-         lockRelease("Assertion Failure In Thread.");
-         throw threadFailure;
+         addThreadFailure(e);
+         throw e;
+      }
+   }
+
+   /**
+    * Checks an invariant in a thread that is not the JUnit thread.
+    * See {@link TestCaseBentley#threadAssertEquals(int, int)}
+    * @param message
+    * @param b
+    */
+   public void threadAssertTrue(String message, boolean b) {
+      try {
+         assertTrue(message, b);
+      } catch (AssertionFailedError e) {
+         //notify waiting thread and throw exception
+         addThreadFailure(e);
+         throw e;
       }
    }
 
@@ -0,0 +1,92 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.lang.reflect.Constructor;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Discovery result of a test class: its test methods and the constructor used to create them.
+ * <br>
+ * Warnings keep their position among the test methods, so that a suite lists them in discovery order.
+ * <br>
+ * Immutable. Shared by all {@link TestSuiteBentley} through {@link TestDiscoveryCache}.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestClassInfo {
+
+   private final Constructor<?> constructor;
+
+   private final boolean        isPublic;
+
+   private final List<String>   methodNames;
+
+   private final Class<?>       testClass;
+
+   /**
+    * Number of test methods discovered before each warning
+    */
+   private final int[]          warningPositions;
+
+   private final List<String>   warnings;
+
+   /**
+    * 
+    * @param testClass
+    * @param constructor null when the class has no usable constructor
+    * @param isPublic
+    * @param methodNames public test methods, in discovery order
+    * @param warnings messages about test methods that cannot be run
+    * @param warningPositions for each warning, the number of test methods discovered before it
+    */
+   public TestClassInfo(Class<?> testClass, Constructor<?> constructor, boolean isPublic, List<String> methodNames, List<String> warnings, int[] warningPositions) {
+      if (warningPositions.length != warnings.size()) {
+         throw new IllegalArgumentException(warningPositions.length + " positions for " + warnings.size() + " warnings");
+      }
+      this.testClass = testClass;
+      this.warningPositions = warningPositions.clone();
+      this.constructor = constructor;
+      this.isPublic = isPublic;
+      this.methodNames = Collections.unmodifiableList(methodNames);
+      this.warnings = Collections.unmodifiableList(warnings);
+   }
+
+   /**
+    * 
+    * @return null if the class has no public constructor TestCase(String name) or TestCase()
+    */
+   public Constructor<?> getConstructor() {
+      return constructor;
+   }
+
+   public List<String> getMethodNames() {
+      return methodNames;
+   }
+
+   public Class<?> getTestClass() {
+      return testClass;
+   }
+
+   /**
+    * 
+    * @param index index in {@link TestClassInfo#getWarnings()}
+    * @return index in {@link TestClassInfo#getMethodNames()} of the method the warning comes before,
+    * the number of methods when it comes last
+    */
+   public int getWarningPosition(int index) {
+      return warningPositions[index];
+   }
+
+   public List<String> getWarnings() {
+      return warnings;
+   }
+
+   public boolean isPublic() {
+      return isPublic;
+   }
+}
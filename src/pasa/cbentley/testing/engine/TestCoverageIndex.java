@@ -0,0 +1,238 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Classes loaded by each test method, kept across runs in a local file.
+ * <br>
+ * Written by {@link TestCoverageRecorder}. Read through {@link TestCtx#setCoverageFile(File)} by
+ * {@link TestSuiteBentley#createAffectedSuite(Collection)} to select the tests affected by a list of changed classes.
+ * <br>
+ * <br>
+ * Class names are stored once in a dictionary, test methods refer to them by number.
+ * <br>
+ * Text format
+ * <li> <code>#pasa.testing.coverage 1</code> header
+ * <li> <code>c className</code> dictionary, numbered from 0 in file order
+ * <li> <code>t className#method n n n</code> classes of a test method
+ * <br>
+ * Thread safe. A corrupted or missing file starts an empty index.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestCoverageIndex {
+
+   public static final String             HEADER   = "#pasa.testing.coverage 1";
+
+   private final List<String>             classes  = new ArrayList<String>();
+
+   private final HashMap<String, Integer> classIds = new HashMap<String, Integer>();
+
+   private final File                     file;
+
+   private boolean                        isDirty;
+
+   private boolean                        isLoaded;
+
+   /**
+    * Sorted class ids of each test method
+    */
+   private final TreeMap<String, int[]>   tests    = new TreeMap<String, int[]>();
+
+   public TestCoverageIndex(File file) {
+      this.file = file;
+   }
+
+   private void ensureLoaded() {
+      if (isLoaded) {
+         return;
+      }
+      isLoaded = true;
+      if (!file.exists()) {
+         return;
+      }
+      try {
+         BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+         try {
+            String line = br.readLine();
+            if (!HEADER.equals(line)) {
+               return;
+            }
+            while ((line = br.readLine()) != null) {
+               String[] parts = line.split(" ");
+               if (parts.length >= 2 && parts[0].equals("c")) {
+                  getClassId(parts[1]);
+               } else if (parts.length >= 2 && parts[0].equals("t")) {
+                  int[] ids = new int[parts.length - 2];
+                  for (int i = 0; i < ids.length; i++) {
+                     ids[i] = Integer.parseInt(parts[i + 2]);
+                     if (ids[i] < 0 || ids[i] >= classes.size()) {
+                        throw new NumberFormatException("class " + ids[i]);
+                     }
+                  }
+                  tests.put(parts[1], ids);
+               }
+            }
+         } finally {
+            br.close();
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      } catch (NumberFormatException e) {
+         //corrupted. what was read is kept
+      }
+   }
+
+   private int getClassId(String className) {
+      Integer id = classIds.get(className);
+      if (id == null) {
+         id = classes.size();
+         classes.add(className);
+         classIds.put(className, id);
+      }
+      return id;
+   }
+
+   /**
+    * 
+    * @param key className#method
+    * @return null when the test method was not recorded
+    */
+   public synchronized List<String> getClasses(String key) {
+      ensureLoaded();
+      int[] ids = tests.get(key);
+      if (ids == null) {
+         return null;
+      }
+      List<String> list = new ArrayList<String>(ids.length);
+      for (int i = 0; i < ids.length; i++) {
+         list.add(classes.get(ids[i]));
+      }
+      return list;
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * True when key loaded one of the changed classes, or was never recorded.
+    * <br>
+    * A changed class also matches its nested and anonymous classes.
+    * @param key className#method
+    * @param changed class names
+    * @return
+    */
+   public synchronized boolean isAffected(String key, Set<String> changed) {
+      ensureLoaded();
+      int[] ids = tests.get(key);
+      if (ids == null) {
+         return true;
+      }
+      for (int i = 0; i < ids.length; i++) {
+         String name = classes.get(ids[i]);
+         if (changed.contains(name)) {
+            return true;
+         }
+         int dollar = name.indexOf('$');
+         if (dollar > 0 && changed.contains(name.substring(0, dollar))) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Replaces the classes of a test method
+    * @param key className#method
+    * @param classNames
+    */
+   public synchronized void record(String key, Collection<String> classNames) {
+      ensureLoaded();
+      int[] ids = new int[classNames.size()];
+      int i = 0;
+      for (String name : classNames) {
+         ids[i++] = getClassId(name);
+      }
+      Arrays.sort(ids);
+      tests.put(key, ids);
+      isDirty = true;
+   }
+
+   /**
+    * Replaces the file if records were added since the last save. See {@link AtomicFile}.
+    * <br>
+    * Classes no longer used by any test are dropped
+    */
+   public synchronized void save() {
+      if (!isDirty) {
+         return;
+      }
+      //renumber the classes still in use, in order of first use
+      HashMap<Integer, Integer> renumber = new HashMap<Integer, Integer>();
+      List<String> used = new ArrayList<String>();
+      for (int[] ids : tests.values()) {
+         for (int i = 0; i < ids.length; i++) {
+            if (!renumber.containsKey(ids[i])) {
+               renumber.put(ids[i], used.size());
+               used.add(classes.get(ids[i]));
+            }
+         }
+      }
+      AtomicFile af = new AtomicFile(file);
+      try {
+         Writer w = af.startWrite();
+         try {
+            w.write(HEADER);
+            w.write('\n');
+            for (String name : used) {
+               w.write("c " + name + "\n");
+            }
+            for (Map.Entry<String, int[]> e : tests.entrySet()) {
+               w.write("t " + e.getKey());
+               int[] ids = e.getValue();
+               for (int i = 0; i < ids.length; i++) {
+                  w.write(" " + renumber.get(ids[i]));
+               }
+               w.write('\n');
+            }
+         } catch (IOException e) {
+            af.failWrite(w);
+            throw e;
+         }
+         af.finishWrite(w);
+         isDirty = false;
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * 
+    * @return number of recorded test methods
+    */
+   public synchronized int size() {
+      ensureLoaded();
+      return tests.size();
+   }
+}
@@ -0,0 +1,152 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import junit.framework.Test;
+import junit.framework.TestResult;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Records in a {@link TestCoverageIndex} the classes loaded by each test method.
+ * <br>
+ * <code>java -cp framework pasa.cbentley.testing.engine.TestCoverageRecorder indexFile moduleClassPath testClass...</code>
+ * <br>
+ * <br>
+ * Each test method runs in its own class loader over the module class path. All the module classes it uses,
+ * from its constructor to its tear down, are loaded again and recorded. As with {@link TestRunnerDaemon},
+ * the module classes must not be on the class path of the recorder.
+ * <br>
+ * Loading every class again for every method is slow. Recording is meant for a nightly run, the index then drives
+ * {@link TestSuiteBentley#createAffectedSuite(java.util.Collection)} on pre-merge checks.
+ * <br>
+ * <br>
+ * Class loading is the granularity: a class is recorded when the test method links it, not per executed line.
+ * Classes only used through constants inlined by the compiler are not seen.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestCoverageRecorder {
+
+   /**
+    * Records the names of the classes it defines
+    */
+   private static class RecordingClassLoader extends URLClassLoader {
+
+      private final TreeSet<String> loaded = new TreeSet<String>();
+
+      public RecordingClassLoader(URL[] urls, ClassLoader parent) {
+         super(urls, parent);
+      }
+
+      protected Class<?> findClass(String name) throws ClassNotFoundException {
+         Class<?> c = super.findClass(name);
+         synchronized (loaded) {
+            loaded.add(name);
+         }
+         return c;
+      }
+
+      public List<String> getLoaded() {
+         synchronized (loaded) {
+            return new ArrayList<String>(loaded);
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 3) {
+         System.err.println("Usage: TestCoverageRecorder indexFile moduleClassPath testClass...");
+         System.exit(2);
+      }
+      TestCoverageIndex index = new TestCoverageIndex(new File(args[0]));
+      TestCoverageRecorder recorder = new TestCoverageRecorder(new TestCtx(new UCtx()), TestRunRequest.toURLs(args[1]), index);
+      TestResult result = new TestResult();
+      for (int i = 2; i < args.length; i++) {
+         recorder.record(args[i], result);
+      }
+      index.save();
+      System.out.println("Recorded " + result.runCount() + " test methods in " + index.getFile() + ", " + index.size() + " indexed");
+   }
+
+   private final URL[]             classPath;
+
+   private final TestCoverageIndex index;
+
+   private final TestCtx           tc;
+
+   /**
+    * 
+    * @param tc {@link TestCtx} of the recorded tests
+    * @param classPath module class path
+    * @param index
+    */
+   public TestCoverageRecorder(TestCtx tc, URL[] classPath, TestCoverageIndex index) {
+      this.tc = tc;
+      this.classPath = classPath;
+      this.index = index;
+   }
+
+   public TestCoverageIndex getIndex() {
+      return index;
+   }
+
+   /**
+    * Runs the test methods of className, each in a new loader, and records the classes each one loaded.
+    * <br>
+    * Failed methods are recorded as well.
+    * @param className
+    * @param result
+    * @throws IOException when a loader cannot be closed
+    */
+   public void record(String className, TestResult result) throws IOException {
+      ClassLoader parent = TestCoverageRecorder.class.getClassLoader();
+      List<String> methods;
+      URLClassLoader scan = new URLClassLoader(classPath, parent);
+      try {
+         methods = TestDiscoveryCache.getInfo(scan.loadClass(className)).getMethodNames();
+      } catch (ClassNotFoundException e) {
+         result.addError(TestSuiteBentley.warning("Cannot load " + className), e);
+         return;
+      } finally {
+         scan.close();
+      }
+      try {
+         for (String method : methods) {
+            if (result.shouldStop()) {
+               break;
+            }
+            RecordingClassLoader loader = new RecordingClassLoader(classPath, parent);
+            try {
+               Class<?> cl = loader.loadClass(className);
+               TestSuiteBentley suite = new TestSuiteBentley(tc, "Coverage " + className);
+               Test test = suite.createTestBentley(cl, method);
+               test.run(result);
+               //a test passed from the result cache did not load anything
+               if (!(test instanceof TestCaseBentley) || !((TestCaseBentley) test).isCached()) {
+                  index.record(className + "#" + method, loader.getLoaded());
+               }
+            } catch (ClassNotFoundException e) {
+               result.addError(TestSuiteBentley.warning("Cannot load " + className), e);
+            } finally {
+               loader.close();
+            }
+         }
+      } finally {
+         //forget the classes of the loaders
+         TestDiscoveryCache.clear();
+         BytecodeHasher.clear();
+      }
+   }
+}
@@ -0,0 +1,132 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Pool of initialized {@link UCtx} and {@link TestCtx} pairs, shared by the tests of a suite.
+ * <br>
+ * Pairs are pooled by test class. A pair was created by the {@link TestCaseBentley#createConfigU()} and
+ * {@link TestCaseBentley#createTestCtx()} of that class, so overrides keep their effect.
+ * <br>
+ * The {@link UCtx} is not reset. It keeps what the tests of the class put in it, like a context shared by a suite.
+ * Test classes that modify their {@link UCtx} return false in {@link TestCaseBentley#isCtxPoolable()}.
+ * <br>
+ * <br>
+ * Protocol
+ * <li> {@link TestSuiteBentley} makes the pool current with {@link TestCtxPool#setCurrent(TestCtxPool)} while it constructs a test
+ * <li> The {@link TestCaseBentley} constructor takes a pair with {@link TestCtxPool#acquire(Class)}, or creates one when the pool is empty
+ * <li> At the end of its run, the test gives the pair back with {@link TestCtxPool#release(Class, Lease)}
+ * <li> Before reuse, the {@link TestCtx} is reset with {@link TestCtx#resetForReuse(TestCtx)} to the settings it had when created
+ * <li> A suite setting its {@link TestCtx} with {@link TestCaseBentley#setTestCtx(TestCtx)} copies its settings into the pooled one,
+ * which stays paired with the pooled {@link UCtx}
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestCtxPool {
+
+   private static final ThreadLocal<TestCtxPool> current = new ThreadLocal<TestCtxPool>();
+
+   /**
+    * 
+    * @return the pool of the suite constructing a test on this thread. null if none
+    */
+   public static TestCtxPool getCurrent() {
+      return current.get();
+   }
+
+   /**
+    * 
+    * @param pool null to clear
+    */
+   public static void setCurrent(TestCtxPool pool) {
+      if (pool == null) {
+         current.remove();
+      } else {
+         current.set(pool);
+      }
+   }
+
+   private final int                                  maxPerClass;
+
+   private final HashMap<Class<?>, ArrayDeque<Lease>> pools = new HashMap<Class<?>, ArrayDeque<Lease>>();
+
+   /**
+    * 
+    * @param maxPerClass number of idle pairs kept for each test class
+    */
+   public TestCtxPool(int maxPerClass) {
+      this.maxPerClass = maxPerClass;
+   }
+
+   /**
+    * 
+    * @param testClass
+    * @return null if no idle pair for testClass
+    */
+   public synchronized Lease acquire(Class<?> testClass) {
+      ArrayDeque<Lease> pool = pools.get(testClass);
+      if (pool == null) {
+         return null;
+      }
+      Lease lease = pool.pollFirst();
+      if (lease != null) {
+         lease.tc.resetForReuse(lease.initial);
+      }
+      return lease;
+   }
+
+   /**
+    * Gives back a pair once its test has run
+    * @param testClass
+    * @param lease
+    */
+   public synchronized void release(Class<?> testClass, Lease lease) {
+      ArrayDeque<Lease> pool = pools.get(testClass);
+      if (pool == null) {
+         pool = new ArrayDeque<Lease>();
+         pools.put(testClass, pool);
+      }
+      if (pool.size() < maxPerClass) {
+         pool.addFirst(lease);
+      }
+   }
+
+   /**
+    * A pooled {@link UCtx} and {@link TestCtx} pair
+    */
+   public static class Lease {
+
+      /**
+       * Settings of {@link Lease#tc} right after its creation
+       */
+      private final TestCtx initial;
+
+      private final TestCtx tc;
+
+      private final UCtx    uc;
+
+      public Lease(UCtx uc, TestCtx tc) {
+         this.uc = uc;
+         this.tc = tc;
+         this.initial = new TestCtx(uc);
+         this.initial.copyConfigFrom(tc);
+      }
+
+      public TestCtx getTestCtx() {
+         return tc;
+      }
+
+      public UCtx getUCtx() {
+         return uc;
+      }
+   }
+}
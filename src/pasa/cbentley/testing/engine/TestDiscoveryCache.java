@@ -0,0 +1,114 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+/**
+ * Process wide cache of {@link TestClassInfo} keyed by test class.
+ * <br>
+ * Reflection on a class is done once, whatever the number of suites including it.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestDiscoveryCache {
+
+   private static final ConcurrentHashMap<Class<?>, TestClassInfo> cache = new ConcurrentHashMap<Class<?>, TestClassInfo>();
+
+   public static void clear() {
+      cache.clear();
+   }
+
+   /**
+    * Scans theClass and its super classes with reflection
+    * @param theClass
+    * @return
+    */
+   public static TestClassInfo discover(Class<?> theClass) {
+      Constructor<?> constructor = null;
+      try {
+         constructor = TestSuite.getTestConstructor(theClass);
+      } catch (NoSuchMethodException e) {
+      }
+      List<String> names = new ArrayList<String>();
+      List<String> warnings = new ArrayList<String>();
+      List<Integer> positions = new ArrayList<Integer>();
+      Set<String> seen = new HashSet<String>();
+      Class<?> superClass = theClass;
+      while (Test.class.isAssignableFrom(superClass)) {
+         for (Method m : superClass.getDeclaredMethods()) {
+            if (!isTestMethod(m)) {
+               continue;
+            }
+            String name = m.getName();
+            if (seen.contains(name)) {
+               continue;
+            }
+            if (!Modifier.isPublic(m.getModifiers())) {
+               warnings.add("Test method isn't public: " + name + "(" + theClass.getCanonicalName() + ")");
+               positions.add(names.size());
+               continue;
+            }
+            seen.add(name);
+            names.add(name);
+         }
+         superClass = superClass.getSuperclass();
+      }
+      int[] warningPositions = new int[positions.size()];
+      for (int i = 0; i < warningPositions.length; i++) {
+         warningPositions[i] = positions.get(i);
+      }
+      return new TestClassInfo(theClass, constructor, Modifier.isPublic(theClass.getModifiers()), names, warnings, warningPositions);
+   }
+
+   /**
+    * 
+    * @param theClass
+    * @return null if theClass was not discovered yet
+    */
+   public static TestClassInfo getCached(Class<?> theClass) {
+      return cache.get(theClass);
+   }
+
+   /**
+    * Returns the cached {@link TestClassInfo} of theClass, discovering it on the first call
+    * @param theClass
+    * @return
+    */
+   public static TestClassInfo getInfo(Class<?> theClass) {
+      TestClassInfo info = cache.get(theClass);
+      if (info == null) {
+         info = discover(theClass);
+         TestClassInfo prev = cache.putIfAbsent(theClass, info);
+         if (prev != null) {
+            info = prev;
+         }
+      }
+      return info;
+   }
+
+   private static boolean isTestMethod(Method m) {
+      return m.getParameterTypes().length == 0 && m.getName().startsWith("test") && m.getReturnType().equals(Void.TYPE);
+   }
+
+   /**
+    * Registers info computed elsewhere, for instance from a precomputed index
+    * @param info
+    */
+   public static void put(TestClassInfo info) {
+      cache.put(info.getTestClass(), info);
+   }
+}
@@ -0,0 +1,128 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.AssertionFailedError;
+import pasa.cbentley.core.src4.ctx.UCtx;
+
+/**
+ * Executor of the threads started by a test method with {@link TestCaseBentley#execute(Runnable...)}.
+ * <br>
+ * <br>
+ * Idle threads are reused. A new thread is created when all are busy, so runnables waiting on each other
+ * cannot starve.
+ * <br>
+ * Throwables of the runnables are kept. {@link TestExecutor#shutdownAndJoin(long)} waits for all runnables
+ * and returns the failure, which {@link TestCaseBentley#runBare()} throws as the test failure.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestExecutor implements ThreadFactory {
+
+   private final List<Throwable>    failures = new ArrayList<Throwable>();
+
+   private final String             name;
+
+   private final ThreadPoolExecutor pool;
+
+   private final AtomicInteger      threadCount = new AtomicInteger();
+
+   protected final UCtx             uc;
+
+   /**
+    * 
+    * @param uc
+    * @param name prefix of thread names, usually the test method name
+    */
+   public TestExecutor(UCtx uc, String name) {
+      this.uc = uc;
+      this.name = name;
+      this.pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), this);
+   }
+
+   /**
+    * Runs run on a pool thread. Throwables are kept for {@link TestExecutor#shutdownAndJoin(long)}
+    * @param run
+    */
+   public void execute(final Runnable run) {
+      try {
+         pool.execute(new Runnable() {
+            public void run() {
+               try {
+                  run.run();
+               } catch (Throwable e) {
+                  addFailure(e);
+               }
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         throw new IllegalStateException("Executor of " + name + " is shut down");
+      }
+   }
+
+   private void addFailure(Throwable e) {
+      synchronized (failures) {
+         failures.add(e);
+      }
+   }
+
+   /**
+    * Copy of the throwables of the runnables so far
+    * @return
+    */
+   public List<Throwable> getFailures() {
+      synchronized (failures) {
+         return new ArrayList<Throwable>(failures);
+      }
+   }
+
+   public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, name + "-exec-" + threadCount.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+   }
+
+   /**
+    * Rejects new runnables and waits for the running ones.
+    * <br>
+    * Runnables still running after millis are interrupted.
+    * @param millis
+    * @return the single failure, an {@link AssertionFailedError} summing up several failures or a timeout. null if none
+    */
+   public Throwable shutdownAndJoin(long millis) {
+      pool.shutdown();
+      boolean isDone;
+      try {
+         isDone = pool.awaitTermination(millis, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         isDone = false;
+      }
+      if (!isDone) {
+         pool.shutdownNow();
+         return new AssertionFailedError("Threads of " + name + " still running after " + millis + "ms");
+      }
+      List<Throwable> list = getFailures();
+      if (list.isEmpty()) {
+         return null;
+      }
+      if (list.size() == 1) {
+         return list.get(0);
+      }
+      AssertionFailedError e = new AssertionFailedError(list.size() + " failures in threads of " + name + ". First is " + list.get(0));
+      e.initCause(list.get(0));
+      return e;
+   }
+}
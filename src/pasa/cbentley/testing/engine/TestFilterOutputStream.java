@@ -5,8 +5,6 @@
 package pasa.cbentley.testing.engine;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -17,6 +15,9 @@ import pasa.cbentley.core.src4.ctx.UCtx;
 import pasa.cbentley.core.src4.helpers.StringBBuilder;
 
 /**
+ * Captures bytes in a single {@link ICaptureBuffer}.
+ * <br>
+ * Bulk writes are stored as is. Characters are only decoded when {@link TestFilterOutputStream#getBufferString()} is called.
  * 
  * @author Charles Bentley
  *
@@ -24,19 +25,17 @@ import pasa.cbentley.core.src4.helpers.StringBBuilder;
 public class TestFilterOutputStream extends FilterOutputStream {
 
    /**
-    * Write output data to a stream 
+    * Single byte copy of the captured data
     */
-   ByteArrayOutputStream  baos;
+   ICaptureBuffer         capture;
 
-   private StringBBuilder buf;
-
-   private int count = 0;
+   private int            count        = 0;
 
    boolean                sendToBuffer = true;
 
    boolean                sendToStdOut = false;
 
-   protected final UCtx   uc;
+   protected UCtx         uc;
 
    /**
     * 
@@ -44,18 +43,25 @@ public class TestFilterOutputStream extends FilterOutputStream {
     * @param os {@link OutputStream} which will be printed to when sendToStdOut is true
     */
    public TestFilterOutputStream(UCtx uc, OutputStream os) {
+      this(uc, os, new CaptureBufferChunked());
+   }
+
+   /**
+    * 
+    * @param uc
+    * @param os {@link OutputStream} which will be printed to when sendToStdOut is true
+    * @param capture storage of the captured bytes
+    */
+   public TestFilterOutputStream(UCtx uc, OutputStream os, ICaptureBuffer capture) {
       super(os);
       this.uc = uc;
-      this.buf = new StringBBuilder(uc, 3600);
-      baos = new ByteArrayOutputStream();
+      this.capture = capture;
    }
 
    public String getBufferString() {
       StringBBuilder sb = new StringBBuilder(uc);
       try {
-         byte[] data = baos.toByteArray();
-         ByteArrayInputStream bi = new ByteArrayInputStream(data);
-         BufferedReader br = new BufferedReader(new InputStreamReader(bi));
+         BufferedReader br = new BufferedReader(new InputStreamReader(capture.getInputStream()));
          String line = br.readLine();
          while (line != null) {
             sb.append(line);
@@ -68,21 +74,52 @@ public class TestFilterOutputStream extends FilterOutputStream {
       return sb.toString();
    }
 
+   public ICaptureBuffer getCapture() {
+      return capture;
+   }
+
+   /**
+    * Number of bytes printed by {@link TestFilterOutputStream#printAll(PrintStream)}
+    * @return
+    */
    public int getCount() {
       return count;
    }
 
    /**
-    *Prints the content
+    * Prints the content. Bytes are replayed without decoding.
     */
    public void printAll(PrintStream out) {
-      String str = buf.toString();
-      count += str.length();
-      out.print(str);
+      try {
+         capture.writeTo(out);
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+      out.flush();
+      count += capture.getSize();
+   }
+
+   /**
+    * Frees the captured data and its resources
+    */
+   public void release() {
+      capture.release();
+   }
+
+   /**
+    * Empties the stream and restores default flags before reuse by another test
+    * @param uc
+    */
+   void resetForReuse(UCtx uc) {
+      this.uc = uc;
+      capture.reset();
+      count = 0;
+      sendToBuffer = true;
+      sendToStdOut = false;
    }
 
    public void resetBuf() {
-      buf.reset();
+      capture.reset();
    }
 
    public void setFlags(boolean std, boolean buff) {
@@ -90,14 +127,21 @@ public class TestFilterOutputStream extends FilterOutputStream {
       sendToBuffer = buff;
    }
 
+   public void write(byte[] b, int off, int len) throws IOException {
+      if (sendToBuffer) {
+         capture.write(b, off, len);
+      }
+      if (sendToStdOut) {
+         out.write(b, off, len);
+      }
+   }
+
    public void write(int b) throws IOException {
       if (sendToBuffer) {
-         char cb = (char) b;
-         buf.append(cb);
-         baos.write(b);
+         capture.write(b);
       }
       if (sendToStdOut) {
-         super.write(b);
+         out.write(b);
       }
    }
 }
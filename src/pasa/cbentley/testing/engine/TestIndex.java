@@ -0,0 +1,275 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Precomputed list of test classes, their test methods and their constructor kind.
+ * <br>
+ * Generated once from compiled classes by {@link TestIndexBuilder}. Set with {@link TestCtx#setTestIndex(TestIndex)},
+ * a {@link TestSuiteBentley} builds its tests without scanning methods by reflection.
+ * <br>
+ * <br>
+ * Each class entry has a stamp computed from the size and modification time of the class files of its hierarchy,
+ * or of the jar files containing them.
+ * When the stamp does not match, the entry is stale and {@link TestIndex#getInfo(Class)} returns null.
+ * The suite then falls back to reflection.
+ * <br>
+ * <br>
+ * Text format, one record per line
+ * <li> <code>#pasa.testing.index 1</code> header
+ * <li> <code>C className ctorKind isPublic stamp</code> class record
+ * <li> <code>M methodName</code> test method of the last class
+ * <li> <code>W message</code> warning of the last class, after the test methods discovered before it
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestIndex {
+
+   /**
+    * No public constructor TestCase(String name) or TestCase()
+    */
+   public static final int  CTOR_0_NONE   = 0;
+
+   /**
+    * Constructor without parameters
+    */
+   public static final int  CTOR_1_NO_ARG = 1;
+
+   /**
+    * Constructor with the test name as parameter
+    */
+   public static final int  CTOR_2_STRING = 2;
+
+   public static final String HEADER        = "#pasa.testing.index 1";
+
+   /**
+    * Computes the stamp of the class files of theClass and its test super classes
+    * @param theClass
+    * @return 0 if a class file cannot be found
+    */
+   public static long computeStamp(Class<?> theClass) {
+      long stamp = 17;
+      Class<?> c = theClass;
+      while (c != null && c != TestCaseBentley.class && c != TestCase.class && Test.class.isAssignableFrom(c)) {
+         String name = c.getName();
+         URL url = c.getResource(name.substring(name.lastIndexOf('.') + 1) + ".class");
+         if (url == null) {
+            return 0;
+         }
+         long modified;
+         long length;
+         if ("file".equals(url.getProtocol())) {
+            try {
+               File f = new File(url.toURI());
+               modified = f.lastModified();
+               length = f.length();
+            } catch (URISyntaxException e) {
+               return 0;
+            }
+         } else {
+            try {
+               URLConnection conn = url.openConnection();
+               if (conn instanceof JarURLConnection) {
+                  //stat the jar file. connecting would open it and keep it open
+                  URL jarUrl = ((JarURLConnection) conn).getJarFileURL();
+                  if (!"file".equals(jarUrl.getProtocol())) {
+                     return 0;
+                  }
+                  File f = new File(jarUrl.toURI());
+                  modified = f.lastModified();
+                  length = f.length();
+               } else {
+                  modified = conn.getLastModified();
+                  length = conn.getContentLengthLong();
+                  conn.getInputStream().close();
+               }
+            } catch (IOException e) {
+               return 0;
+            } catch (URISyntaxException e) {
+               return 0;
+            }
+         }
+         stamp = stamp * 31 + modified;
+         stamp = stamp * 31 + length;
+         c = c.getSuperclass();
+      }
+      return stamp;
+   }
+
+   public static int getCtorKind(Constructor<?> constructor) {
+      if (constructor == null) {
+         return CTOR_0_NONE;
+      } else if (constructor.getParameterTypes().length == 0) {
+         return CTOR_1_NO_ARG;
+      } else {
+         return CTOR_2_STRING;
+      }
+   }
+
+   /**
+    * Reads an index file
+    * @param file
+    * @return
+    * @throws IOException when the file cannot be read or is not an index
+    */
+   public static TestIndex load(File file) throws IOException {
+      TestIndex index = new TestIndex();
+      BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String line = br.readLine();
+         if (!HEADER.equals(line)) {
+            throw new IOException("Not a test index " + file);
+         }
+         Entry current = null;
+         while ((line = br.readLine()) != null) {
+            if (line.length() < 2) {
+               continue;
+            }
+            char type = line.charAt(0);
+            String data = line.substring(2);
+            if (type == 'C') {
+               String[] parts = data.split(" ");
+               current = new Entry(parts[0], Integer.parseInt(parts[1]), "1".equals(parts[2]), Long.parseLong(parts[3]));
+               index.entries.put(current.className, current);
+            } else if (type == 'M' && current != null) {
+               current.methodNames.add(data);
+            } else if (type == 'W' && current != null) {
+               current.warnings.add(data);
+               current.warningPositions.add(current.methodNames.size());
+            }
+         }
+      } finally {
+         br.close();
+      }
+      return index;
+   }
+
+   private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+   /**
+    * Adds the entry of a discovered class
+    * @param info
+    */
+   public void add(TestClassInfo info) {
+      Class<?> c = info.getTestClass();
+      Entry e = new Entry(c.getName(), getCtorKind(info.getConstructor()), info.isPublic(), computeStamp(c));
+      e.methodNames.addAll(info.getMethodNames());
+      e.warnings.addAll(info.getWarnings());
+      for (int i = 0; i < e.warnings.size(); i++) {
+         e.warningPositions.add(info.getWarningPosition(i));
+      }
+      entries.put(e.className, e);
+   }
+
+   /**
+    * Returns the {@link TestClassInfo} of theClass from the index and registers it in the {@link TestDiscoveryCache}.
+    * <br>
+    * Only the constructor is looked up by reflection.
+    * @param theClass
+    * @return null when theClass is not indexed or its entry is stale
+    */
+   public TestClassInfo getInfo(Class<?> theClass) {
+      Entry e = entries.get(theClass.getName());
+      if (e == null || e.stamp == 0 || e.stamp != computeStamp(theClass)) {
+         return null;
+      }
+      Constructor<?> constructor = null;
+      try {
+         if (e.ctorKind == CTOR_1_NO_ARG) {
+            constructor = theClass.getConstructor(new Class[0]);
+         } else if (e.ctorKind == CTOR_2_STRING) {
+            constructor = theClass.getConstructor(new Class[] { String.class });
+         }
+      } catch (NoSuchMethodException ex) {
+         //index does not match the class
+         return null;
+      }
+      int[] warningPositions = new int[e.warningPositions.size()];
+      for (int i = 0; i < warningPositions.length; i++) {
+         warningPositions[i] = e.warningPositions.get(i);
+      }
+      TestClassInfo info = new TestClassInfo(theClass, constructor, e.isPublic, e.methodNames, e.warnings, warningPositions);
+      TestDiscoveryCache.put(info);
+      return info;
+   }
+
+   public int size() {
+      return entries.size();
+   }
+
+   /**
+    * Writes the index
+    * @param file
+    * @throws IOException
+    */
+   public void write(File file) throws IOException {
+      Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+      try {
+         w.write(HEADER);
+         w.write('\n');
+         for (Entry e : entries.values()) {
+            w.write("C " + e.className + " " + e.ctorKind + " " + (e.isPublic ? "1" : "0") + " " + e.stamp + "\n");
+            int wi = 0;
+            for (int i = 0; i <= e.methodNames.size(); i++) {
+               while (wi < e.warnings.size() && e.warningPositions.get(wi) <= i) {
+                  w.write("W " + e.warnings.get(wi++).replace('\n', ' ') + "\n");
+               }
+               if (i < e.methodNames.size()) {
+                  w.write("M " + e.methodNames.get(i) + "\n");
+               }
+            }
+         }
+      } finally {
+         w.close();
+      }
+   }
+
+   private static class Entry {
+
+      final String        className;
+
+      final int           ctorKind;
+
+      final boolean       isPublic;
+
+      final List<String>  methodNames      = new ArrayList<String>();
+
+      final long          stamp;
+
+      final List<Integer> warningPositions = new ArrayList<Integer>();
+
+      final List<String>  warnings         = new ArrayList<String>();
+
+      Entry(String className, int ctorKind, boolean isPublic, long stamp) {
+         this.className = className;
+         this.ctorKind = ctorKind;
+         this.isPublic = isPublic;
+         this.stamp = stamp;
+      }
+   }
+}
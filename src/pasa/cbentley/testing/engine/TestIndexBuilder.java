@@ -0,0 +1,77 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+
+import junit.framework.TestCase;
+
+/**
+ * Generates a {@link TestIndex} from a directory of compiled classes.
+ * <br>
+ * Meant to be run once by the build after compilation
+ * <br>
+ * <code>java pasa.cbentley.testing.engine.TestIndexBuilder classesDir indexFile</code>
+ * <br>
+ * The classes directory must be on the class path. Classes are loaded without being initialized.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestIndexBuilder {
+
+   public static void main(String[] args) throws IOException {
+      if (args.length != 2) {
+         System.err.println("Usage: TestIndexBuilder classesDir indexFile");
+         System.exit(1);
+      }
+      TestIndexBuilder builder = new TestIndexBuilder(TestIndexBuilder.class.getClassLoader());
+      TestIndex index = builder.build(new File(args[0]));
+      index.write(new File(args[1]));
+      System.out.println("Indexed " + index.size() + " test classes to " + args[1]);
+   }
+
+   private final ClassLoader loader;
+
+   public TestIndexBuilder(ClassLoader loader) {
+      this.loader = loader;
+   }
+
+   /**
+    * Indexes all concrete {@link TestCase} classes found under root
+    * @param root
+    * @return
+    */
+   public TestIndex build(File root) {
+      TestIndex index = new TestIndex();
+      scan(root, "", index);
+      return index;
+   }
+
+   private void scan(File dir, String pkg, TestIndex index) {
+      File[] files = dir.listFiles();
+      if (files == null) {
+         return;
+      }
+      for (File f : files) {
+         String name = f.getName();
+         if (f.isDirectory()) {
+            scan(f, pkg + name + ".", index);
+         } else if (name.endsWith(".class")) {
+            String className = pkg + name.substring(0, name.length() - 6);
+            try {
+               Class<?> c = Class.forName(className, false, loader);
+               if (TestCase.class.isAssignableFrom(c) && !Modifier.isAbstract(c.getModifiers())) {
+                  index.add(TestDiscoveryCache.discover(c));
+               }
+            } catch (Throwable e) {
+               //not loadable in this class path. skip it
+            }
+         }
+      }
+   }
+}
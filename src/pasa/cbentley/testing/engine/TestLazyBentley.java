@@ -0,0 +1,79 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import org.junit.runner.Describable;
+import org.junit.runner.Description;
+
+import junit.framework.Test;
+import junit.framework.TestResult;
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Placeholder for a test method of a {@link TestSuiteBentley}.
+ * <br>
+ * The {@link TestCaseBentley} instance, with its {@link pasa.cbentley.core.src4.ctx.UCtx} and capture streams,
+ * is created just before {@link TestLazyBentley#run(TestResult)} and released right after.
+ * <br>
+ * Peak memory is thus bounded by the number of tests actually running, not by the size of the suite.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestLazyBentley implements Test, Describable {
+
+   private final String           name;
+
+   private final TestSuiteBentley suite;
+
+   /**
+    * {@link TestCtx} given to the instance. null for the suite one
+    */
+   private TestCtx                tc;
+
+   private final Class<?>         testClass;
+
+   public TestLazyBentley(TestSuiteBentley suite, Class<?> testClass, String name) {
+      this.suite = suite;
+      this.testClass = testClass;
+      this.name = name;
+   }
+
+   public int countTestCases() {
+      return 1;
+   }
+
+   public Description getDescription() {
+      return Description.createTestDescription(testClass, name);
+   }
+
+   public String getName() {
+      return name;
+   }
+
+   public Class<?> getTestClass() {
+      return testClass;
+   }
+
+   /**
+    * Creates the test, runs it and drops it
+    */
+   public void run(TestResult result) {
+      Test test = suite.createTestBentley(tc, testClass, name);
+      test.run(result);
+   }
+
+   /**
+    * Sets the {@link TestCtx} of the instance that will be created
+    * @param tc
+    */
+   public void setTestCtx(TestCtx tc) {
+      this.tc = tc;
+   }
+
+   public String toString() {
+      return name + "(" + testClass.getName() + ")";
+   }
+}
@@ -0,0 +1,203 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+import pasa.cbentley.core.src4.ctx.ObjectU;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.core.src4.logging.Dctx;
+
+/**
+ * Resources used by a test method, measured between {@link TestMetrics#start()} and {@link TestMetrics#stop()}.
+ * <br>
+ * <li> wall time
+ * <li> CPU time of the test thread
+ * <li> bytes allocated by the test thread
+ * <li> number and time of garbage collections, all collectors
+ * <li> heap used before and after
+ * <br>
+ * Values not supported by the JVM are -1.
+ * <br>
+ * Printed by {@link TestCaseBentley#tearDown()} when {@link ITechTesting#TEST_FLAG_07_PRINT_METRICS} is set.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestMetrics extends ObjectU {
+
+   private static long sumGcCount() {
+      long count = 0;
+      List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+      for (GarbageCollectorMXBean gc : gcs) {
+         long c = gc.getCollectionCount();
+         if (c > 0) {
+            count += c;
+         }
+      }
+      return count;
+   }
+
+   private static long sumGcMillis() {
+      long millis = 0;
+      List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+      for (GarbageCollectorMXBean gc : gcs) {
+         long t = gc.getCollectionTime();
+         if (t > 0) {
+            millis += t;
+         }
+      }
+      return millis;
+   }
+
+   private static long getHeapUsed() {
+      return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+   }
+
+   private long                 allocatedBytes = -1;
+
+   private long                 allocStart;
+
+   private final AllocationMeter allocationMeter;
+
+   private long                 cpuNanos       = -1;
+
+   private long                 cpuStart;
+
+   private long                 gcCount;
+
+   private long                 gcCountStart;
+
+   private long                 gcMillis;
+
+   private long                 gcMillisStart;
+
+   private long                 heapAfter;
+
+   private long                 heapBefore;
+
+   /**
+    * True between {@link TestMetrics#start()} and {@link TestMetrics#stop()} when allocations are counted
+    */
+   private boolean              isAllocMeasuring;
+
+   private final ThreadMXBean   threadBean;
+
+   private long                 wallNanos;
+
+   private long                 wallStart;
+
+   public TestMetrics(UCtx uc) {
+      super(uc);
+      threadBean = ManagementFactory.getThreadMXBean();
+      allocationMeter = new AllocationMeter();
+   }
+
+   /**
+    * 
+    * @return -1 if not supported
+    */
+   public long getAllocatedBytes() {
+      return allocatedBytes;
+   }
+
+   /**
+    * 
+    * @return -1 if not supported
+    */
+   public long getCpuNanos() {
+      return cpuNanos;
+   }
+
+   public long getGcCount() {
+      return gcCount;
+   }
+
+   public long getGcMillis() {
+      return gcMillis;
+   }
+
+   public long getHeapAfter() {
+      return heapAfter;
+   }
+
+   public long getHeapBefore() {
+      return heapBefore;
+   }
+
+   public long getWallNanos() {
+      return wallNanos;
+   }
+
+   private boolean isCpuSupported() {
+      return threadBean.isCurrentThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+   }
+
+   /**
+    * Snapshots the counters. Must be called by the test thread
+    */
+   public void start() {
+      heapBefore = getHeapUsed();
+      gcCountStart = sumGcCount();
+      gcMillisStart = sumGcMillis();
+      if (allocationMeter.isSupported() && !isAllocMeasuring) {
+         allocationMeter.beginMeasure();
+         isAllocMeasuring = true;
+         allocStart = allocationMeter.getAllocatedBytes();
+      }
+      if (isCpuSupported()) {
+         cpuStart = threadBean.getCurrentThreadCpuTime();
+      }
+      wallStart = System.nanoTime();
+   }
+
+   /**
+    * Computes the differences since {@link TestMetrics#start()}. Must be called by the thread that called start
+    */
+   public void stop() {
+      wallNanos = System.nanoTime() - wallStart;
+      if (isCpuSupported()) {
+         cpuNanos = threadBean.getCurrentThreadCpuTime() - cpuStart;
+      }
+      if (isAllocMeasuring) {
+         allocatedBytes = allocationMeter.getAllocatedBytes() - allocStart;
+         allocationMeter.endMeasure();
+         isAllocMeasuring = false;
+      }
+      gcCount = sumGcCount() - gcCountStart;
+      gcMillis = sumGcMillis() - gcMillisStart;
+      heapAfter = getHeapUsed();
+   }
+
+   //#mdebug
+   public void toString(Dctx dc) {
+      dc.root(this, TestMetrics.class, "@line5");
+      toStringPrivate(dc);
+      super.toString(dc.sup());
+      dc.nl();
+      dc.append("cpu=" + (cpuNanos < 0 ? "n/a" : (cpuNanos / 1000000L) + "ms"));
+      dc.append(" allocated=" + (allocatedBytes < 0 ? "n/a" : allocatedBytes + " bytes"));
+      dc.nl();
+      dc.append("gcCount=" + gcCount + " gcTime=" + gcMillis + "ms");
+      dc.nl();
+      dc.append("heapBefore=" + (heapBefore / 1024) + "KB heapAfter=" + (heapAfter / 1024) + "KB");
+   }
+
+   private void toStringPrivate(Dctx dc) {
+      dc.append(" wall=" + (wallNanos / 1000000L) + "ms");
+   }
+
+   public void toString1Line(Dctx dc) {
+      dc.root1Line(this, TestMetrics.class);
+      toStringPrivate(dc);
+      super.toString1Line(dc.sup1Line());
+   }
+
+   //#enddebug
+
+}
@@ -0,0 +1,202 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Installed once as {@link System#out}. Each write is sent to the capture stream bound to the writing thread.
+ * <br>
+ * Threads without a binding write to their console, the standard output unless {@link TestOutputRouter#bindConsole(PrintStream)}.
+ * <br>
+ * <br>
+ * Bindings are not inherited. A thread created by a bound thread writes to its console, unless its runnable
+ * is wrapped with {@link TestOutputRouter#propagate(Runnable)}, as done by {@link TestCaseBentley#execute(Runnable...)}.
+ * Long lived threads, such as pool threads started lazily during a test, thus never keep writing to a released capture.
+ * <br>
+ * This replaces {@link System#setOut(PrintStream)} swapping so that {@link TestCaseBentley} instances can run concurrently
+ * in one JVM without mixing their outputs.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestOutputRouter extends OutputStream {
+
+   private static TestOutputRouter                   router;
+
+   /**
+    * Wraps run so that it writes where the current thread writes, once the router is installed.
+    * <br>
+    * Returns run when there is no router.
+    * @param run
+    * @return
+    * @see TestOutputRouter#propagate(Runnable)
+    */
+   public static Runnable propagateCurrent(Runnable run) {
+      TestOutputRouter r;
+      synchronized (TestOutputRouter.class) {
+         r = router;
+      }
+      if (r == null) {
+         return run;
+      }
+      return r.propagate(run);
+   }
+
+   /**
+    * Returns the router, installing it as {@link System#out} on the first call
+    * @param standardOut the original {@link System#out}
+    * @return
+    */
+   public static synchronized TestOutputRouter install(PrintStream standardOut) {
+      if (router == null) {
+         router = new TestOutputRouter(standardOut);
+      }
+      if (System.out != router.printStream) {
+         System.setOut(router.printStream);
+      }
+      return router;
+   }
+
+   private final PrintStream                         printStream;
+
+   private final PrintStream                         standard;
+
+   private final ThreadLocal<OutputStream>           target = new ThreadLocal<OutputStream>();
+
+   /**
+    * Replaces the standard output for the threads of a remote run. See {@link TestRunnerDaemon}
+    */
+   private final ThreadLocal<PrintStream>            console = new ThreadLocal<PrintStream>();
+
+   private TestOutputRouter(PrintStream standard) {
+      this.standard = standard;
+      this.printStream = new PrintStream(this, true);
+   }
+
+   /**
+    * Sends the current thread output to os
+    * @param os
+    */
+   public void bind(OutputStream os) {
+      target.set(os);
+   }
+
+   /**
+    * Sends the current thread uncaptured output to ps instead of the standard output.
+    * <br>
+    * Failure output printed by {@link TestCaseBentley#printTestStream()} goes to ps as well.
+    * @param ps
+    */
+   public void bindConsole(PrintStream ps) {
+      console.set(ps);
+   }
+
+   public void flush() throws IOException {
+      getTarget().flush();
+   }
+
+   /**
+    * The {@link PrintStream} installed as {@link System#out}
+    * @return
+    */
+   public PrintStream getPrintStream() {
+      return printStream;
+   }
+
+   /**
+    * 
+    * @return the capture stream bound to the current thread, null if none
+    */
+   public OutputStream getBinding() {
+      return target.get();
+   }
+
+   /**
+    * Where the current thread prints when its output is not captured
+    * @return the standard output unless a console is bound
+    */
+   public PrintStream getConsole() {
+      PrintStream ps = console.get();
+      if (ps == null) {
+         return standard;
+      }
+      return ps;
+   }
+
+   private OutputStream getTarget() {
+      OutputStream os = target.get();
+      if (os == null) {
+         return getConsole();
+      }
+      return os;
+   }
+
+   /**
+    * True when current thread output is captured
+    * @return
+    */
+   public boolean isBound() {
+      return target.get() != null;
+   }
+
+   /**
+    * Wraps run so that the thread running it writes where the current thread writes now, capture and console.
+    * <br>
+    * The bindings of the running thread are restored when run returns, so pool threads can be reused.
+    * @param run
+    * @return
+    */
+   public Runnable propagate(final Runnable run) {
+      final OutputStream os = target.get();
+      final PrintStream ps = console.get();
+      return new Runnable() {
+         public void run() {
+            OutputStream oldOs = target.get();
+            PrintStream oldPs = console.get();
+            set(target, os);
+            set(console, ps);
+            try {
+               run.run();
+            } finally {
+               set(target, oldOs);
+               set(console, oldPs);
+            }
+         }
+      };
+   }
+
+   private <T> void set(ThreadLocal<T> local, T value) {
+      if (value == null) {
+         local.remove();
+      } else {
+         local.set(value);
+      }
+   }
+
+   /**
+    * Current thread writes to the standard output again
+    */
+   public void unbind() {
+      target.remove();
+   }
+
+   /**
+    * Current thread prints to the standard output again
+    */
+   public void unbindConsole() {
+      console.remove();
+   }
+
+   public void write(byte[] b, int off, int len) throws IOException {
+      getTarget().write(b, off, len);
+   }
+
+   public void write(int b) throws IOException {
+      getTarget().write(b);
+   }
+}
@@ -0,0 +1,91 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestFailure;
+import junit.framework.TestResult;
+
+/**
+ * {@link TestResult} given to one worker thread of a parallel {@link TestSuiteBentley}.
+ * <br>
+ * Events of the current test are buffered. At {@link TestResultAggregator#endTest(Test)}, they are
+ * replayed in one block to the master {@link TestResult}, while holding its lock.
+ * <br>
+ * Listeners of the master thus never see the events of two tests interleaved.
+ * <br>
+ * Counts of this object are the counts of the tests run by this worker.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestResultAggregator extends TestResult {
+
+   /**
+    * Index in {@link TestResult#fErrors} of the first error of the current test
+    */
+   private int              errorStart;
+
+   /**
+    * Index in {@link TestResult#fFailures} of the first failure of the current test
+    */
+   private int              failureStart;
+
+   private final TestResult master;
+
+   public TestResultAggregator(TestResult master) {
+      this.master = master;
+   }
+
+   public synchronized void addError(Test test, Throwable t) {
+      super.addError(test, t);
+   }
+
+   public synchronized void addFailure(Test test, AssertionFailedError t) {
+      super.addFailure(test, t);
+   }
+
+   /**
+    * Replays the buffered events of test to the master
+    */
+   public void endTest(Test test) {
+      super.endTest(test);
+      synchronized (master) {
+         master.startTest(test);
+         synchronized (this) {
+            for (int i = errorStart; i < fErrors.size(); i++) {
+               TestFailure tf = fErrors.get(i);
+               master.addError(tf.failedTest(), tf.thrownException());
+            }
+            for (int i = failureStart; i < fFailures.size(); i++) {
+               TestFailure tf = fFailures.get(i);
+               master.addFailure(tf.failedTest(), (AssertionFailedError) tf.thrownException());
+            }
+         }
+         master.endTest(test);
+      }
+   }
+
+   public TestResult getMaster() {
+      return master;
+   }
+
+   public boolean shouldStop() {
+      return master.shouldStop();
+   }
+
+   public void startTest(Test test) {
+      synchronized (this) {
+         errorStart = fErrors.size();
+         failureStart = fFailures.size();
+      }
+      super.startTest(test);
+   }
+
+   public void stop() {
+      master.stop();
+   }
+}
@@ -0,0 +1,292 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Test methods that passed, with the fingerprint of what they ran, kept across runs in a local file.
+ * <br>
+ * Set with {@link TestCtx#setResultCache(File, int)}. A {@link TestCaseBentley} whose fingerprint did not change since it
+ * last passed is reported as passed without being run, unless {@link ITechTesting#ENGINE_FLAG_05_FORCE_FULL_RUN}.
+ * <br>
+ * <br>
+ * The fingerprint is made of
+ * <li> the {@link BytecodeHasher} hash of the test class, which covers the code it depends on
+ * <li> the test and engine flags of the {@link TestCtx}
+ * <li> the content of the resources read through {@link InputStreamFactoryJUnit}
+ * <br>
+ * A failure removes the entry. The least recently used entries are evicted above the maximum.
+ * <br>
+ * Text format, least recently used first
+ * <li> <code>#pasa.testing.results 1</code> header
+ * <li> <code>className#method codeHash resourcesHash resource...</code> resource names URL encoded
+ * <br>
+ * Thread safe. A corrupted or missing file starts an empty cache.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestResultCache {
+
+   private static class PassedRun {
+
+      String   codeHash;
+
+      String[] resources;
+
+      String   resourcesHash;
+   }
+
+   public static final String                      HEADER = "#pasa.testing.results 1";
+
+   private final LinkedHashMap<String, PassedRun> entries;
+
+   private final File                              file;
+
+   /**
+    * Tests reported from the cache since the last {@link TestResultCache#takeHits()}
+    */
+   private int                                     hits;
+
+   private boolean                                 isDirty;
+
+   private boolean                                 isLoaded;
+
+   private final int                               maxEntries;
+
+   /**
+    * 
+    * @param file
+    * @param maxEntries number of test methods kept
+    */
+   public TestResultCache(File file, final int maxEntries) {
+      this.file = file;
+      this.maxEntries = maxEntries;
+      this.entries = new LinkedHashMap<String, PassedRun>(16, 0.75f, true) {
+
+         private static final long serialVersionUID = 1L;
+
+         protected boolean removeEldestEntry(Map.Entry<String, PassedRun> eldest) {
+            return size() > maxEntries;
+         }
+      };
+   }
+
+   private static String decode(String s) {
+      try {
+         return URLDecoder.decode(s, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String encode(String s) {
+      try {
+         return URLEncoder.encode(s, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Hash of the current content of resources, as found by cl
+    * @param cl
+    * @param resources
+    * @return "-" when empty
+    */
+   public static String hashResources(Class<?> cl, String[] resources) {
+      if (resources.length == 0) {
+         return "-";
+      }
+      MessageDigest md = BytecodeHasher.sha1();
+      byte[] buf = new byte[4096];
+      for (int i = 0; i < resources.length; i++) {
+         md.update(resources[i].getBytes());
+         InputStream is = cl.getResourceAsStream(resources[i]);
+         if (is == null) {
+            md.update((byte) 0);
+            continue;
+         }
+         md.update((byte) 1);
+         try {
+            try {
+               int n;
+               while ((n = is.read(buf)) != -1) {
+                  md.update(buf, 0, n);
+               }
+            } finally {
+               is.close();
+            }
+         } catch (IOException e) {
+            md.update((byte) 2);
+         }
+      }
+      return BytecodeHasher.toHex(md.digest());
+   }
+
+   private void ensureLoaded() {
+      if (isLoaded) {
+         return;
+      }
+      isLoaded = true;
+      if (!file.exists()) {
+         return;
+      }
+      try {
+         BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+         try {
+            String line = br.readLine();
+            if (!HEADER.equals(line)) {
+               return;
+            }
+            while ((line = br.readLine()) != null) {
+               String[] parts = line.split(" ");
+               if (parts.length < 3) {
+                  continue;
+               }
+               PassedRun e = new PassedRun();
+               e.codeHash = parts[1];
+               e.resourcesHash = parts[2];
+               e.resources = new String[parts.length - 3];
+               for (int i = 0; i < e.resources.length; i++) {
+                  e.resources[i] = decode(parts[i + 3]);
+               }
+               entries.put(parts[0], e);
+            }
+         } finally {
+            br.close();
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      } catch (IllegalArgumentException e) {
+         //corrupted. what was read is kept
+      }
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   public int getMaxEntries() {
+      return maxEntries;
+   }
+
+   /**
+    * True when key passed with the same code hash and its resources did not change since.
+    * Counted as a hit.
+    * @param key className#method
+    * @param codeHash
+    * @param cl class whose loader finds the resources
+    * @return
+    */
+   public boolean isPassed(String key, String codeHash, Class<?> cl) {
+      PassedRun e;
+      synchronized (this) {
+         ensureLoaded();
+         e = entries.get(key);
+      }
+      if (e == null || !e.codeHash.equals(codeHash)) {
+         return false;
+      }
+      //read outside the lock
+      if (!e.resourcesHash.equals(hashResources(cl, e.resources))) {
+         return false;
+      }
+      synchronized (this) {
+         hits++;
+      }
+      return true;
+   }
+
+   /**
+    * Records the result of a run of key
+    * @param key className#method
+    * @param codeHash
+    * @param cl class whose loader finds the resources
+    * @param resources names of the resources read by the run
+    * @param isPassed when false, the entry is removed
+    */
+   public void record(String key, String codeHash, Class<?> cl, Collection<String> resources, boolean isPassed) {
+      if (!isPassed) {
+         synchronized (this) {
+            ensureLoaded();
+            isDirty |= entries.remove(key) != null;
+         }
+         return;
+      }
+      PassedRun e = new PassedRun();
+      e.codeHash = codeHash;
+      e.resources = resources.toArray(new String[resources.size()]);
+      e.resourcesHash = hashResources(cl, e.resources);
+      synchronized (this) {
+         ensureLoaded();
+         entries.put(key, e);
+         isDirty = true;
+      }
+   }
+
+   /**
+    * Replaces the file if entries changed since the last save. See {@link AtomicFile}
+    */
+   public synchronized void save() {
+      if (!isDirty) {
+         return;
+      }
+      AtomicFile af = new AtomicFile(file);
+      try {
+         Writer w = af.startWrite();
+         try {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<String, PassedRun> me : entries.entrySet()) {
+               PassedRun e = me.getValue();
+               w.write(me.getKey() + " " + e.codeHash + " " + e.resourcesHash);
+               for (int i = 0; i < e.resources.length; i++) {
+                  w.write(" " + encode(e.resources[i]));
+               }
+               w.write('\n');
+            }
+         } catch (IOException e) {
+            af.failWrite(w);
+            throw e;
+         }
+         af.finishWrite(w);
+         isDirty = false;
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+   public synchronized int size() {
+      ensureLoaded();
+      return entries.size();
+   }
+
+   /**
+    * Number of tests reported from the cache since the last call
+    * @return
+    */
+   public synchronized int takeHits() {
+      int n = hits;
+      hits = 0;
+      return n;
+   }
+}
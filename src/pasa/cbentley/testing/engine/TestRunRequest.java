@@ -0,0 +1,404 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import junit.framework.Test;
+import junit.framework.TestResult;
+import junit.framework.TestSuite;
+import pasa.cbentley.core.src4.ctx.UCtx;
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Run request of {@link ITechTestRun}. Read by {@link TestRunnerDaemon} and the {@link TestShardRunner} workers.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestRunRequest implements ITechTestRun {
+
+   /**
+    * 
+    * @param cl
+    * @return the static suite() method of cl, null if none
+    */
+   private static Method getSuiteMethod(Class<?> cl) {
+      try {
+         Method m = cl.getMethod("suite");
+         if (Modifier.isStatic(m.getModifiers())) {
+            return m;
+         }
+      } catch (NoSuchMethodException e) {
+         //plain test class
+      }
+      return null;
+   }
+
+   /**
+    * Reads a request
+    * @param in
+    * @return
+    * @throws IOException when the header is wrong or the stream ends before the end line
+    */
+   public static TestRunRequest read(BufferedReader in) throws IOException {
+      String header = in.readLine();
+      if (!HEADER.equals(header)) {
+         throw new IOException("Bad header " + header);
+      }
+      TestRunRequest req = new TestRunRequest();
+      String line = in.readLine();
+      while (line != null && !line.equals(CMD_END)) {
+         int space = line.indexOf(' ');
+         String cmd = space < 0 ? line : line.substring(0, space);
+         String arg = space < 0 ? "" : line.substring(space + 1).trim();
+         if (cmd.equals(CMD_TEST)) {
+            req.specs.add(arg);
+         } else if (cmd.equals(CMD_FLAGS)) {
+            req.testFlags = Integer.parseInt(arg);
+         } else if (cmd.equals(CMD_ENGINE)) {
+            req.engineFlags = Integer.parseInt(arg);
+         } else if (cmd.equals(CMD_TIMEOUT)) {
+            req.timeoutMillis = Long.parseLong(arg);
+         } else if (cmd.equals(CMD_CLASSPATH)) {
+            req.classPath = arg;
+         } else if (cmd.equals(CMD_TIMINGS)) {
+            req.timingFile = arg;
+         } else if (cmd.equals(CMD_TOKEN)) {
+            req.token = arg;
+         } else if (cmd.equals(CMD_SHARD)) {
+            StringTokenizer st = new StringTokenizer(arg);
+            req.setShard(Integer.parseInt(st.nextToken()), Integer.parseInt(st.nextToken()));
+         }
+         line = in.readLine();
+      }
+      if (line == null) {
+         throw new IOException("Request without end line");
+      }
+      return req;
+   }
+
+   /**
+    * 
+    * @param classPath entries separated by {@link File#pathSeparator}
+    * @return
+    * @throws MalformedURLException
+    */
+   public static URL[] toURLs(String classPath) throws MalformedURLException {
+      List<URL> urls = new ArrayList<URL>();
+      StringTokenizer st = new StringTokenizer(classPath, File.pathSeparator);
+      while (st.hasMoreTokens()) {
+         urls.add(new File(st.nextToken()).toURI().toURL());
+      }
+      return urls.toArray(new URL[urls.size()]);
+   }
+
+   private String             classPath;
+
+   private int                engineFlags;
+
+   private int                shardCount = 1;
+
+   private int                shardIndex;
+
+   private final List<String> specs      = new ArrayList<String>();
+
+   private int                testFlags;
+
+   private long               timeoutMillis;
+
+   private String             timingFile;
+
+   private String             token;
+
+   /**
+    * 
+    * @param spec className or className#method
+    */
+   public void addTest(String spec) {
+      specs.add(spec);
+   }
+
+   /**
+    * Specs of the test methods of this shard. Nothing is instantiated.
+    * <br>
+    * Class specs are expanded into their test method names with {@link TestDiscoveryCache}. A class with a static suite()
+    * method, or whose methods cannot be created one by one, stays a single unit.
+    * <br>
+    * Without timings, unit i goes to shard i modulo the shard count. With a {@link TestTimingStore} file, units are
+    * assigned longest first to the least loaded shard. Units never recorded are estimated at the mean duration.
+    * <br>
+    * All shards compute the same partition from the same specs and file, so partitions are deterministic and disjoint.
+    * @param loader
+    * @return
+    */
+   private List<String> createShardSpecs(ClassLoader loader) {
+      final List<String> units = new ArrayList<String>();
+      for (String spec : specs) {
+         if (spec.indexOf('#') >= 0) {
+            units.add(spec);
+            continue;
+         }
+         try {
+            Class<?> cl = Class.forName(spec, false, loader);
+            TestClassInfo info = TestDiscoveryCache.getInfo(cl);
+            if (getSuiteMethod(cl) != null || !info.isPublic() || info.getConstructor() == null || info.getMethodNames().isEmpty()) {
+               units.add(spec);
+            } else {
+               for (String method : info.getMethodNames()) {
+                  units.add(spec + "#" + method);
+               }
+            }
+         } catch (Throwable e) {
+            //reported by the shard that gets it
+            units.add(spec);
+         }
+      }
+      List<String> shard = new ArrayList<String>();
+      TestTimingStore store = timingFile == null ? null : new TestTimingStore(new File(timingFile));
+      if (store == null || store.size() == 0) {
+         for (int i = shardIndex; i < units.size(); i += shardCount) {
+            shard.add(units.get(i));
+         }
+         return shard;
+      }
+      final long[] millis = new long[units.size()];
+      long mean = store.getMeanMillis();
+      Integer[] order = new Integer[units.size()];
+      for (int i = 0; i < order.length; i++) {
+         String unit = units.get(i);
+         long m = unit.indexOf('#') >= 0 ? store.getMillis(unit) : store.getClassMillis(unit);
+         millis[i] = m < 0 ? mean : m;
+         order[i] = i;
+      }
+      //stable, so equal durations keep the spec order
+      Arrays.sort(order, new Comparator<Integer>() {
+         public int compare(Integer a, Integer b) {
+            return millis[a] > millis[b] ? -1 : millis[a] < millis[b] ? 1 : 0;
+         }
+      });
+      long[] loads = new long[shardCount];
+      boolean[] isMine = new boolean[units.size()];
+      for (Integer i : order) {
+         int least = 0;
+         for (int s = 1; s < shardCount; s++) {
+            if (loads[s] < loads[least]) {
+               least = s;
+            }
+         }
+         //at least 1 so that units never recorded spread too
+         loads[least] += Math.max(1, millis[i]);
+         isMine[i] = least == shardIndex;
+      }
+      for (int i = 0; i < units.size(); i++) {
+         if (isMine[i]) {
+            shard.add(units.get(i));
+         }
+      }
+      return shard;
+   }
+
+   /**
+    * Suite of the requested tests. With a shard, only the test methods of the shard are created.
+    * See {@link TestRunRequest#createShardSpecs(ClassLoader)}
+    * @param tc
+    * @param loader
+    * @return
+    */
+   public TestSuiteBentley createSuite(TestCtx tc, ClassLoader loader) {
+      List<String> units = specs;
+      String name = "Run";
+      if (shardCount > 1) {
+         units = createShardSpecs(loader);
+         name = "Shard " + shardIndex + "/" + shardCount;
+      }
+      TestSuiteBentley suite = new TestSuiteBentley(tc, name);
+      for (String spec : units) {
+         try {
+            suite.addTest(createTest(suite, tc, loader, spec));
+         } catch (Throwable e) {
+            suite.addTest(TestSuite.warning("Cannot create " + spec + " " + e));
+         }
+      }
+      return suite;
+   }
+
+   /**
+    * Test of a spec
+    * @param suite
+    * @param tc
+    * @param loader
+    * @param spec className or className#method
+    * @return
+    * @throws Exception
+    */
+   private Test createTest(TestSuiteBentley suite, TestCtx tc, ClassLoader loader, String spec) throws Exception {
+      int hash = spec.indexOf('#');
+      String className = hash < 0 ? spec : spec.substring(0, hash);
+      Class<?> cl = Class.forName(className, true, loader);
+      if (hash >= 0) {
+         return suite.createTestBentley(cl, spec.substring(hash + 1));
+      }
+      Method m = getSuiteMethod(cl);
+      if (m != null) {
+         return (Test) m.invoke(null);
+      }
+      return new TestSuiteBentley(tc, cl);
+   }
+
+   /**
+    * {@link TestCtx} with the flags and timeout of the request
+    * @return
+    */
+   public TestCtx createTestCtx() {
+      TestCtx tc = new TestCtx(new UCtx());
+      for (int i = 0; i < 32; i++) {
+         tc.setTestFlag(1 << i, (testFlags & (1 << i)) != 0);
+         tc.setEngineFlag(1 << i, (engineFlags & (1 << i)) != 0);
+      }
+      tc.setTestTimeoutMillis(timeoutMillis);
+      return tc;
+   }
+
+   /**
+    * 
+    * @return null when not set
+    */
+   public String getClassPath() {
+      return classPath;
+   }
+
+   /**
+    * 
+    * @return null when not set
+    */
+   public String getTimingFile() {
+      return timingFile;
+   }
+
+   /**
+    * 
+    * @return null when not set
+    */
+   public String getToken() {
+      return token;
+   }
+
+   /**
+    * Runs the requested tests, sending console output and results to response.
+    * <br>
+    * The console of the calling thread is bound to the response during the run.
+    * @param loader loads the test classes
+    * @param response
+    * @return
+    */
+   public TestResult run(ClassLoader loader, TestRunResponse response) {
+      TestCtx tc = createTestCtx();
+      TestOutputRouter router = TestCaseBentley.getOutputRouter();
+      TestResult result = new TestResult();
+      result.addListener(response);
+      long start = System.currentTimeMillis();
+      router.bindConsole(response.getConsole());
+      try {
+         createSuite(tc, loader).run(result);
+      } finally {
+         router.unbindConsole();
+      }
+      response.done(result, System.currentTimeMillis() - start);
+      return result;
+   }
+
+   public void setClassPath(String classPath) {
+      this.classPath = classPath;
+   }
+
+   public void setEngineFlags(int engineFlags) {
+      this.engineFlags = engineFlags;
+   }
+
+   /**
+    * 
+    * @param index 0 to count - 1
+    * @param count number of shards
+    */
+   public void setShard(int index, int count) {
+      if (index < 0 || index >= count) {
+         throw new IllegalArgumentException("shard " + index + "/" + count);
+      }
+      this.shardIndex = index;
+      this.shardCount = count;
+   }
+
+   public void setTestFlags(int testFlags) {
+      this.testFlags = testFlags;
+   }
+
+   public void setTimeoutMillis(long timeoutMillis) {
+      this.timeoutMillis = timeoutMillis;
+   }
+
+   /**
+    * Durations used to balance the shards. Read only, shards do not record their durations in it
+    * @param timingFile path of a {@link TestTimingStore} file, null for none
+    */
+   public void setTimingFile(String timingFile) {
+      this.timingFile = timingFile;
+   }
+
+   /**
+    * Secret of the {@link TestRunnerDaemon} the request is sent to
+    * @param token
+    */
+   public void setToken(String token) {
+      this.token = token;
+   }
+
+   /**
+    * Writes the request lines, header and end line included
+    * @param w
+    * @throws IOException
+    */
+   public void write(Writer w) throws IOException {
+      w.write(HEADER + "\n");
+      if (token != null) {
+         w.write(CMD_TOKEN + " " + token + "\n");
+      }
+      for (String spec : specs) {
+         w.write(CMD_TEST + " " + spec + "\n");
+      }
+      if (testFlags != 0) {
+         w.write(CMD_FLAGS + " " + testFlags + "\n");
+      }
+      if (engineFlags != 0) {
+         w.write(CMD_ENGINE + " " + engineFlags + "\n");
+      }
+      if (timeoutMillis != 0) {
+         w.write(CMD_TIMEOUT + " " + timeoutMillis + "\n");
+      }
+      if (classPath != null) {
+         w.write(CMD_CLASSPATH + " " + classPath + "\n");
+      }
+      if (shardCount > 1) {
+         w.write(CMD_SHARD + " " + shardIndex + " " + shardCount + "\n");
+      }
+      if (timingFile != null) {
+         w.write(CMD_TIMINGS + " " + timingFile + "\n");
+      }
+      w.write(CMD_END + "\n");
+      w.flush();
+   }
+}
@@ -0,0 +1,158 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.StringTokenizer;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+
+/**
+ * Writes the response lines of {@link ITechTestRun}. Listens to the {@link TestResult} of the run.
+ * <br>
+ * {@link TestRunResponse#getConsole()} encodes console output as <code>out</code> lines.
+ * <br>
+ * Thread safe. Write errors are ignored, the run finishes even when the other end is gone.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestRunResponse implements TestListener, ITechTestRun {
+
+   /**
+    * Sends the bytes line by line as <code>out</code> lines
+    */
+   private class ConsoleOutputStream extends OutputStream {
+
+      private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+      private void emit() {
+         String str = new String(line.toByteArray());
+         if (str.endsWith("\r")) {
+            str = str.substring(0, str.length() - 1);
+         }
+         line.reset();
+         line(CMD_OUT, str);
+      }
+
+      /**
+       * Sends the last line without line feed
+       */
+      public synchronized void finish() {
+         if (line.size() > 0) {
+            emit();
+         }
+      }
+
+      public synchronized void write(int b) {
+         if (b == '\n') {
+            emit();
+         } else {
+            line.write(b);
+         }
+      }
+   }
+
+   /**
+    * JUnit name of test. {@link TestCaseBentley#toString()} is a debug string
+    * @param test
+    * @return
+    */
+   public static String getTestName(Test test) {
+      if (test instanceof TestCase) {
+         return ((TestCase) test).getName() + "(" + test.getClass().getName() + ")";
+      }
+      return String.valueOf(test);
+   }
+
+   private final PrintStream         console;
+
+   private final ConsoleOutputStream consoleStream;
+
+   private final Writer              writer;
+
+   public TestRunResponse(Writer writer) {
+      this.writer = writer;
+      this.consoleStream = new ConsoleOutputStream();
+      this.console = new PrintStream(consoleStream, true);
+   }
+
+   public void addError(Test test, Throwable t) {
+      line(CMD_ERROR, getTestName(test) + " " + t);
+      trace(t);
+   }
+
+   public void addFailure(Test test, AssertionFailedError t) {
+      line(CMD_FAILURE, getTestName(test) + " " + t.getMessage());
+      trace(t);
+   }
+
+   /**
+    * Sends the last console line and the <code>done</code> line
+    * @param result
+    * @param millis
+    */
+   public void done(TestResult result, long millis) {
+      console.flush();
+      consoleStream.finish();
+      line(CMD_DONE, result.runCount() + " " + result.failureCount() + " " + result.errorCount() + " " + millis);
+   }
+
+   public void endTest(Test test) {
+      line(CMD_END, getTestName(test));
+   }
+
+   /**
+    * Stream whose lines are sent as <code>out</code> lines
+    * @return
+    */
+   public PrintStream getConsole() {
+      return console;
+   }
+
+   /**
+    * Writes one response line. Line feeds of arg are replaced by spaces
+    * @param cmd
+    * @param arg
+    */
+   public synchronized void line(String cmd, String arg) {
+      try {
+         writer.write(cmd);
+         writer.write(' ');
+         writer.write(String.valueOf(arg).replace('\n', ' ').replace('\r', ' '));
+         writer.write('\n');
+         writer.flush();
+      } catch (IOException e) {
+         //other end is gone. the run finishes anyways
+      }
+   }
+
+   public void startTest(Test test) {
+      line(CMD_START, getTestName(test));
+   }
+
+   /**
+    * Sends the stack trace of t as <code>trace</code> lines
+    * @param t
+    */
+   public synchronized void trace(Throwable t) {
+      StringWriter sw = new StringWriter();
+      t.printStackTrace(new PrintWriter(sw));
+      StringTokenizer st = new StringTokenizer(sw.toString(), "\r\n");
+      while (st.hasMoreTokens()) {
+         line(CMD_TRACE, st.nextToken());
+      }
+   }
+}
@@ -0,0 +1,141 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.StringTokenizer;
+
+/**
+ * Sends a run request to a {@link TestRunnerDaemon} and prints its output.
+ * <br>
+ * <code>java pasa.cbentley.testing.engine.TestRunnerClient port [-flags n] [-engine n] [-timeout ms] [-cp path] test...</code>
+ * <br>
+ * A test is a class name or className#method. Exits with 0 when all tests passed.
+ * <br>
+ * The token of the daemon is read from {@link TestRunnerDaemon#getTokenFile(int)}, so the client must run as the same user.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestRunnerClient implements ITechTestRun {
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println("Usage: TestRunnerClient port [-flags n] [-engine n] [-timeout ms] [-cp path] test...");
+         System.exit(2);
+      }
+      TestRunnerClient client = new TestRunnerClient(Integer.parseInt(args[0]));
+      StringBuilder request = new StringBuilder();
+      for (int i = 1; i < args.length; i++) {
+         String a = args[i];
+         if (a.equals("-flags") && i + 1 < args.length) {
+            request.append(CMD_FLAGS).append(' ').append(args[++i]).append('\n');
+         } else if (a.equals("-engine") && i + 1 < args.length) {
+            request.append(CMD_ENGINE).append(' ').append(args[++i]).append('\n');
+         } else if (a.equals("-timeout") && i + 1 < args.length) {
+            request.append(CMD_TIMEOUT).append(' ').append(args[++i]).append('\n');
+         } else if (a.equals("-cp") && i + 1 < args.length) {
+            request.append(CMD_CLASSPATH).append(' ').append(args[++i]).append('\n');
+         } else {
+            request.append(CMD_TEST).append(' ').append(a).append('\n');
+         }
+      }
+      boolean isSuccess = client.run(request.toString(), System.out);
+      System.exit(isSuccess ? 0 : 1);
+   }
+
+   private static String readToken(File file) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+         String line = in.readLine();
+         if (line == null) {
+            throw new IOException("Empty token file " + file);
+         }
+         return line.trim();
+      } finally {
+         in.close();
+      }
+   }
+
+   private final int    port;
+
+   private final String token;
+
+   /**
+    * Reads the token of the daemon listening on port
+    * @param port
+    * @throws IOException when the token file cannot be read
+    */
+   public TestRunnerClient(int port) throws IOException {
+      this(port, readToken(TestRunnerDaemon.getTokenFile(port)));
+   }
+
+   /**
+    * 
+    * @param port
+    * @param token secret of the daemon
+    */
+   public TestRunnerClient(int port, String token) {
+      this.port = port;
+      this.token = token;
+   }
+
+   /**
+    * Sends the request lines and prints the response to out
+    * @param requestLines lines between the header and the end line
+    * @param out
+    * @return true when the tests ran without failure nor error
+    * @throws IOException
+    */
+   public boolean run(String requestLines, PrintStream out) throws IOException {
+      Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+      try {
+         Writer w = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+         w.write(HEADER);
+         w.write('\n');
+         w.write(CMD_TOKEN + " " + token);
+         w.write('\n');
+         w.write(requestLines);
+         w.write(CMD_END);
+         w.write('\n');
+         w.flush();
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+         String line = in.readLine();
+         while (line != null) {
+            int space = line.indexOf(' ');
+            String cmd = space < 0 ? line : line.substring(0, space);
+            String arg = space < 0 ? "" : line.substring(space + 1);
+            if (cmd.equals(CMD_OUT) || cmd.equals(CMD_TRACE)) {
+               out.println(arg);
+            } else if (cmd.equals(CMD_FAILURE)) {
+               out.println("FAILURE " + arg);
+            } else if (cmd.equals(CMD_ERROR)) {
+               out.println("ERROR " + arg);
+            } else if (cmd.equals(CMD_DONE)) {
+               StringTokenizer st = new StringTokenizer(arg);
+               int run = Integer.parseInt(st.nextToken());
+               int failures = Integer.parseInt(st.nextToken());
+               int errors = Integer.parseInt(st.nextToken());
+               out.println("Tests run: " + run + ", Failures: " + failures + ", Errors: " + errors + ", Time: " + st.nextToken() + "ms");
+               return failures == 0 && errors == 0;
+            }
+            line = in.readLine();
+         }
+         out.println("Connection closed before the end of the run");
+         return false;
+      } finally {
+         socket.close();
+      }
+   }
+}
@@ -0,0 +1,201 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Long lived test runner. Keeps the framework classes loaded and runs tests sent by {@link TestRunnerClient}.
+ * <br>
+ * <code>java -cp framework pasa.cbentley.testing.engine.TestRunnerDaemon port moduleClassPath</code>
+ * <br>
+ * <br>
+ * The daemon listens on the loopback interface. Each request is run in a new {@link URLClassLoader} over the module class path,
+ * so recompiled classes are picked up. The module classes must not be on the daemon class path, else the parent loader wins.
+ * <br>
+ * Requests are run one after the other. A client silent for {@link TestRunnerDaemon#REQUEST_TIMEOUT_MILLIS} while sending
+ * its request is answered with an error, so it cannot block the daemon.
+ * <br>
+ * <br>
+ * Requests and responses follow {@link ITechTestRun}. The <code>classpath</code> line replaces the module class path of the daemon for this request.
+ * <br>
+ * Java 8 has no Unix domain sockets, so a loopback TCP socket is used. Any local user can connect to it.
+ * A request runs code, so it must carry the secret token the daemon writes at start in {@link TestRunnerDaemon#getTokenFile(int)},
+ * a file only readable by the user running the daemon. Requests without the right token are refused before any class is loaded.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestRunnerDaemon implements ITechTestRun {
+
+   /**
+    * Socket read timeout while reading a request
+    */
+   public static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 1 || args.length > 2) {
+         System.err.println("Usage: TestRunnerDaemon port [moduleClassPath]");
+         System.exit(1);
+      }
+      TestRunnerDaemon daemon = new TestRunnerDaemon(TestRunRequest.toURLs(args.length == 2 ? args[1] : ""));
+      daemon.serve(Integer.parseInt(args[0]));
+   }
+
+   /**
+    * File holding the token of the daemon listening on port. Read by {@link TestRunnerClient}
+    * @param port
+    * @return
+    */
+   public static File getTokenFile(int port) {
+      return new File(new File(System.getProperty("user.home"), ".pasa-testing"), "daemon-" + port + ".token");
+   }
+
+   private final URL[] moduleClassPath;
+
+   private String      token;
+
+   public TestRunnerDaemon(URL[] moduleClassPath) {
+      this.moduleClassPath = moduleClassPath;
+   }
+
+   /**
+    * Constant time comparison, so the token cannot be guessed from response times
+    * @param requestToken null when missing
+    * @return
+    */
+   private boolean isTokenValid(String requestToken) {
+      if (requestToken == null) {
+         return false;
+      }
+      try {
+         return MessageDigest.isEqual(token.getBytes("UTF-8"), requestToken.getBytes("UTF-8"));
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Creates a random token and writes it to file, readable and writable by the owner only
+    * @param file
+    * @throws IOException
+    */
+   private void writeToken(File file) throws IOException {
+      byte[] bytes = new byte[32];
+      new SecureRandom().nextBytes(bytes);
+      StringBuilder sb = new StringBuilder(bytes.length * 2);
+      for (int i = 0; i < bytes.length; i++) {
+         sb.append(Character.forDigit((bytes[i] >> 4) & 0xF, 16));
+         sb.append(Character.forDigit(bytes[i] & 0xF, 16));
+      }
+      token = sb.toString();
+      File dir = file.getParentFile();
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Cannot create " + dir);
+      }
+      dir.setReadable(false, false);
+      dir.setReadable(true, true);
+      dir.setWritable(false, false);
+      dir.setWritable(true, true);
+      dir.setExecutable(false, false);
+      dir.setExecutable(true, true);
+      if (file.exists() && !file.delete()) {
+         throw new IOException("Cannot replace " + file);
+      }
+      if (!file.createNewFile()) {
+         throw new IOException("Cannot create " + file);
+      }
+      //permissions are set before the token is written
+      if (!file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false) || !file.setWritable(true, true)) {
+         file.delete();
+         throw new IOException("Cannot restrict access to " + file);
+      }
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+         out.write(token.getBytes("UTF-8"));
+      } finally {
+         out.close();
+      }
+      file.deleteOnExit();
+   }
+
+   /**
+    * Reads one request and streams its results
+    * @param socket
+    * @throws IOException
+    */
+   private void handle(Socket socket) throws IOException {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+      TestRunResponse response = new TestRunResponse(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+      TestRunRequest request;
+      socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+      try {
+         request = TestRunRequest.read(in);
+      } catch (IOException e) {
+         //includes the read timeout
+         response.line(CMD_ERROR, "request " + e.getMessage());
+         response.line(CMD_DONE, "0 0 1 0");
+         return;
+      } catch (RuntimeException e) {
+         //bad number or shard
+         response.line(CMD_ERROR, "request " + e);
+         response.line(CMD_DONE, "0 0 1 0");
+         return;
+      }
+      if (!isTokenValid(request.getToken())) {
+         response.line(CMD_ERROR, "request bad token");
+         response.line(CMD_DONE, "0 0 1 0");
+         return;
+      }
+      URL[] classPath = moduleClassPath;
+      if (request.getClassPath() != null) {
+         classPath = TestRunRequest.toURLs(request.getClassPath());
+      }
+      URLClassLoader loader = new URLClassLoader(classPath, TestRunnerDaemon.class.getClassLoader());
+      try {
+         request.run(loader, response);
+      } finally {
+         //forget the classes of this loader
+         TestDiscoveryCache.clear();
+         BytecodeHasher.clear();
+         loader.close();
+      }
+   }
+
+   /**
+    * Writes the token file and accepts requests until the JVM is stopped
+    * @param port 0 for any free port
+    * @throws IOException
+    */
+   public void serve(int port) throws IOException {
+      ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+      File tokenFile = getTokenFile(server.getLocalPort());
+      writeToken(tokenFile);
+      System.out.println("TestRunnerDaemon listening on port " + server.getLocalPort() + " token in " + tokenFile);
+      while (true) {
+         Socket socket = server.accept();
+         try {
+            handle(socket);
+         } catch (Exception e) {
+            //a bad request must not stop the daemon
+            e.printStackTrace();
+         } finally {
+            socket.close();
+         }
+      }
+   }
+}
@@ -0,0 +1,444 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestResult;
+import junit.textui.TestRunner;
+
+/**
+ * Runs a {@link TestRunRequest} in several child JVMs and merges their results into one {@link TestResult}.
+ * <br>
+ * <code>java pasa.cbentley.testing.engine.TestShardRunner shards [-flags n] [-engine n] [-timeout ms] [-cp path] [-timings file] test...</code>
+ * <br>
+ * <br>
+ * Each child runs a {@link TestShardWorker} with the JVM arguments and class path of this JVM, debugger agents excepted.
+ * The request is written on its stdin with its shard, see {@link TestRunRequest#createSuite(pasa.cbentley.testing.ctx.TestCtx, ClassLoader)}.
+ * Children expand the same specs into the same list of test methods and create only those of their partition,
+ * so the partition is deterministic. With <code>-timings</code>, partitions are balanced by the durations of a {@link TestTimingStore}.
+ * <br>
+ * <br>
+ * Results come back as {@link ITechTestRun} lines on stdout. The events and console lines of a test are buffered
+ * until its <code>end</code> line, then replayed in one block on the merged {@link TestResult}, so the output of
+ * the shards does not interleave. Console lines are printed with the test that produced them,
+ * that is the test stream printed by {@link TestCaseBentley#printTestStream()} when the test failed.
+ * <br>
+ * A child that dies before its <code>done</code> line is reported as an error, with the test it was running.
+ * <br>
+ * Stderr of the children is inherited.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestShardRunner implements Test, ITechTestRun {
+
+   /**
+    * Error reported by a child. Prints the stack trace of the child
+    */
+   private static class RemoteError extends RuntimeException {
+
+      private static final long  serialVersionUID = 1L;
+
+      private final List<String> trace            = new ArrayList<String>();
+
+      public RemoteError(String message) {
+         super(message);
+      }
+
+      public void printStackTrace(PrintStream s) {
+         printStackTrace(new PrintWriter(s, true));
+      }
+
+      public void printStackTrace(PrintWriter s) {
+         printTrace(s, trace, toString());
+      }
+
+      public String toString() {
+         return getMessage();
+      }
+   }
+
+   /**
+    * Failure reported by a child. Prints the stack trace of the child
+    */
+   private static class RemoteFailure extends AssertionFailedError {
+
+      private static final long  serialVersionUID = 1L;
+
+      private final List<String> trace            = new ArrayList<String>();
+
+      public RemoteFailure(String message) {
+         super(message);
+      }
+
+      public void printStackTrace(PrintStream s) {
+         printStackTrace(new PrintWriter(s, true));
+      }
+
+      public void printStackTrace(PrintWriter s) {
+         printTrace(s, trace, toString());
+      }
+   }
+
+   /**
+    * Test run by a child. Running it replays the events and console lines the child sent for it
+    */
+   private class RemoteTest extends TestCase {
+
+      private final List<Throwable> events = new ArrayList<Throwable>();
+
+      private final List<String>    out    = new ArrayList<String>();
+
+      public RemoteTest(String name) {
+         super(name);
+      }
+
+      /**
+       * Replays the buffered events and console lines on result, in one block
+       */
+      public void run(TestResult result) {
+         result.startTest(this);
+         for (Throwable t : events) {
+            if (t instanceof AssertionFailedError) {
+               result.addFailure(this, (AssertionFailedError) t);
+            } else {
+               result.addError(this, t);
+            }
+         }
+         for (String line : out) {
+            console.println(line);
+         }
+         result.endTest(this);
+      }
+
+      /**
+       * Throws the first event of the child, if any
+       */
+      protected void runTest() throws Throwable {
+         if (!events.isEmpty()) {
+            throw events.get(0);
+         }
+      }
+
+      public String toString() {
+         return getName();
+      }
+   }
+
+   /**
+    * Reads the response of one child
+    */
+   private class ShardReader implements Runnable {
+
+      private final int      index;
+
+      private final Process  process;
+
+      private final TestResult result;
+
+      public ShardReader(int index, Process process, TestResult result) {
+         this.index = index;
+         this.process = process;
+         this.result = result;
+      }
+
+      public void run() {
+         List<RemoteTest> running = new ArrayList<RemoteTest>();
+         List<String> trace = null;
+         boolean isDone = false;
+         try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+            String line = in.readLine();
+            while (line != null) {
+               int space = line.indexOf(' ');
+               String cmd = space < 0 ? line : line.substring(0, space);
+               String arg = space < 0 ? "" : line.substring(space + 1);
+               RemoteTest current = running.isEmpty() ? null : running.get(running.size() - 1);
+               if (cmd.equals(CMD_OUT)) {
+                  if (current == null) {
+                     print(arg);
+                  } else {
+                     current.out.add(arg);
+                  }
+               } else if (cmd.equals(CMD_START)) {
+                  running.add(new RemoteTest(arg));
+               } else if (cmd.equals(CMD_FAILURE) || cmd.equals(CMD_ERROR)) {
+                  RemoteTest test = find(running, name(arg));
+                  String message = message(arg);
+                  if (cmd.equals(CMD_FAILURE)) {
+                     RemoteFailure failure = new RemoteFailure(message);
+                     trace = failure.trace;
+                     test.events.add(failure);
+                  } else {
+                     RemoteError error = new RemoteError(message);
+                     trace = error.trace;
+                     test.events.add(error);
+                  }
+               } else if (cmd.equals(CMD_TRACE)) {
+                  if (trace != null) {
+                     trace.add(arg);
+                  }
+               } else if (cmd.equals(CMD_END)) {
+                  RemoteTest test = find(running, arg);
+                  if (test != null) {
+                     running.remove(test);
+                     replay(test);
+                  }
+               } else if (cmd.equals(CMD_DONE)) {
+                  isDone = true;
+               }
+               line = in.readLine();
+            }
+         } catch (IOException e) {
+            //reported below as a crash
+         }
+         if (!isDone) {
+            int exit = -1;
+            try {
+               exit = process.waitFor();
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+            String message = "Shard " + index + " exited with code " + exit + " before the end of the run";
+            for (RemoteTest test : running) {
+               test.events.add(new RemoteError(message + " while running " + test.getName()));
+               replay(test);
+            }
+            if (running.isEmpty()) {
+               RemoteTest test = new RemoteTest("Shard " + index);
+               test.events.add(new RemoteError(message));
+               replay(test);
+            }
+         }
+      }
+
+      /**
+       * 
+       * @param running
+       * @param name
+       * @return a new running test when none has that name
+       */
+      private RemoteTest find(List<RemoteTest> running, String name) {
+         for (int i = running.size() - 1; i >= 0; i--) {
+            if (running.get(i).getName().equals(name)) {
+               return running.get(i);
+            }
+         }
+         RemoteTest test = new RemoteTest(name);
+         running.add(test);
+         return test;
+      }
+
+      private String message(String arg) {
+         int space = arg.indexOf(' ');
+         return space < 0 ? "" : arg.substring(space + 1);
+      }
+
+      private String name(String arg) {
+         int space = arg.indexOf(' ');
+         return space < 0 ? arg : arg.substring(0, space);
+      }
+
+      private void print(String line) {
+         synchronized (result) {
+            console.println(line);
+         }
+      }
+
+      /**
+       * Runs test on the merged result, one shard at a time
+       * @param test
+       */
+      private void replay(RemoteTest test) {
+         synchronized (result) {
+            test.run(result);
+         }
+      }
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println("Usage: TestShardRunner shards [-flags n] [-engine n] [-timeout ms] [-cp path] [-timings file] test...");
+         System.exit(2);
+      }
+      TestRunRequest request = new TestRunRequest();
+      for (int i = 1; i < args.length; i++) {
+         String a = args[i];
+         if (a.equals("-flags") && i + 1 < args.length) {
+            request.setTestFlags(Integer.parseInt(args[++i]));
+         } else if (a.equals("-engine") && i + 1 < args.length) {
+            request.setEngineFlags(Integer.parseInt(args[++i]));
+         } else if (a.equals("-timeout") && i + 1 < args.length) {
+            request.setTimeoutMillis(Long.parseLong(args[++i]));
+         } else if (a.equals("-cp") && i + 1 < args.length) {
+            request.setClassPath(args[++i]);
+         } else if (a.equals("-timings") && i + 1 < args.length) {
+            request.setTimingFile(args[++i]);
+         } else {
+            request.addTest(a);
+         }
+      }
+      TestShardRunner runner = new TestShardRunner(request, Integer.parseInt(args[0]));
+      TestResult result = new TestRunner(System.out).doRun(runner);
+      System.exit(result.wasSuccessful() ? 0 : 1);
+   }
+
+   /**
+    * Prints the remote trace, or the header when the child sent none
+    * @param s
+    * @param trace
+    * @param header
+    */
+   private static void printTrace(PrintWriter s, List<String> trace, String header) {
+      if (trace.isEmpty()) {
+         s.println(header);
+      }
+      for (String line : trace) {
+         s.println(line);
+      }
+      s.flush();
+   }
+
+   private PrintStream          console = System.out;
+
+   private final TestRunRequest request;
+
+   private final int            shardCount;
+
+   /**
+    * 
+    * @param request tests to run. Its shard is set for each child
+    * @param shardCount number of child JVMs
+    */
+   public TestShardRunner(TestRunRequest request, int shardCount) {
+      if (shardCount < 1) {
+         throw new IllegalArgumentException("shardCount " + shardCount);
+      }
+      this.request = request;
+      this.shardCount = shardCount;
+   }
+
+   /**
+    * Not known before the children built their suites
+    */
+   public int countTestCases() {
+      return 0;
+   }
+
+   /**
+    * Command line of a child: the java binary, JVM arguments and class path of this JVM.
+    * <br>
+    * Debugger agents are dropped, their port is already taken by this JVM.
+    * @return
+    */
+   protected List<String> createCommand() {
+      List<String> cmd = new ArrayList<String>();
+      cmd.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+      for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+         if (!arg.startsWith("-agentlib:jdwp") && !arg.startsWith("-Xrunjdwp")) {
+            cmd.add(arg);
+         }
+      }
+      cmd.add("-cp");
+      cmd.add(System.getProperty("java.class.path"));
+      cmd.add(TestShardWorker.class.getName());
+      return cmd;
+   }
+
+   public PrintStream getConsole() {
+      return console;
+   }
+
+   /**
+    * Forks the children and merges their results in result. Returns when all children are done.
+    * <br>
+    * Children balance their partitions with a copy of the timing file of the request, so that they all read the same durations.
+    */
+   public void run(TestResult result) {
+      String timingFile = request.getTimingFile();
+      File snapshot = null;
+      try {
+         if (timingFile != null && new File(timingFile).exists()) {
+            snapshot = File.createTempFile("timings", ".txt");
+            Files.copy(new File(timingFile).toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            request.setTimingFile(snapshot.getPath());
+         }
+         runShards(result);
+      } catch (IOException e) {
+         result.addError(this, e);
+      } finally {
+         request.setTimingFile(timingFile);
+         if (snapshot != null) {
+            snapshot.delete();
+         }
+      }
+   }
+
+   /**
+    * Forks one child per shard and waits until their responses are read
+    * @param result
+    */
+   private void runShards(TestResult result) {
+      List<Thread> readers = new ArrayList<Thread>();
+      List<Process> processes = new ArrayList<Process>();
+      try {
+         for (int i = 0; i < shardCount; i++) {
+            ProcessBuilder pb = new ProcessBuilder(createCommand());
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Process process = pb.start();
+            processes.add(process);
+            Thread t = new Thread(TestOutputRouter.propagateCurrent(new ShardReader(i, process, result)), "Shard-" + i);
+            t.start();
+            readers.add(t);
+            request.setShard(i, shardCount);
+            OutputStreamWriter w = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+            request.write(w);
+            w.close();
+         }
+      } catch (IOException e) {
+         //started children finish their shard
+         result.addError(this, e);
+      }
+      try {
+         for (Thread t : readers) {
+            t.join();
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         result.addError(this, e);
+      } finally {
+         for (Process process : processes) {
+            process.destroy();
+         }
+      }
+   }
+
+   /**
+    * Stream of the console lines sent by the children. System.out by default
+    * @param console
+    */
+   public void setConsole(PrintStream console) {
+      this.console = console;
+   }
+
+   public String toString() {
+      return "TestShardRunner " + shardCount + " shards";
+   }
+}
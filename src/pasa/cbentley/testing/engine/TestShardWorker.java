@@ -0,0 +1,41 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.URLClassLoader;
+
+/**
+ * Child JVM of a {@link TestShardRunner}. Reads one {@link TestRunRequest} on stdin and writes the
+ * {@link TestRunResponse} lines on stdout.
+ * <br>
+ * System.out is replaced before any test class is loaded, so that all console output,
+ * including the one of threads outside the tests, is sent as <code>out</code> lines and cannot break the protocol.
+ * <br>
+ * The JVM exits once the response is written, stray threads of the tests included.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestShardWorker {
+
+   public static void main(String[] args) throws IOException {
+      PrintStream protocol = System.out;
+      TestRunResponse response = new TestRunResponse(new OutputStreamWriter(protocol, "UTF-8"));
+      System.setOut(response.getConsole());
+      TestRunRequest request = TestRunRequest.read(new BufferedReader(new InputStreamReader(System.in, "UTF-8")));
+      ClassLoader loader = TestShardWorker.class.getClassLoader();
+      if (request.getClassPath() != null) {
+         loader = new URLClassLoader(TestRunRequest.toURLs(request.getClassPath()), loader);
+      }
+      request.run(loader, response);
+      protocol.flush();
+      System.exit(0);
+   }
+}
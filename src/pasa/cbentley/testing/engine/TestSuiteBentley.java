@@ -4,24 +4,85 @@
  */
 package pasa.cbentley.testing.engine;
 
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
+import junit.framework.TestResult;
 import junit.framework.TestSuite;
 import pasa.cbentley.core.src4.ctx.UCtx;
 import pasa.cbentley.testing.ctx.TestCtx;
 
-public class TestSuiteBentley extends TestSuite {
+/**
+ * {@link TestSuite} setting its {@link TestCtx} to the {@link TestCaseBentley} it creates.
+ * <br>
+ * <br>
+ * When {@link TestCtx#getParallelMode()} is not {@link ITechTesting#PARALLEL_0_NONE}, tests are run by a fixed pool of
+ * {@link TestCtx#getParallelThreads()} workers.
+ * Each worker has its own {@link TestCtx} and {@link UCtx}. Results are fed to the JUnit {@link TestResult}
+ * through a {@link TestResultAggregator}.
+ * <br>
+ * Test methods of a class are discovered once per process by {@link TestDiscoveryCache}, or read from
+ * the {@link TestIndex} of {@link TestCtx#getTestIndex()}.
+ * <br>
+ * Classes implementing {@link ITestSerial} are run on the calling thread after the parallel tests.
+ * <br>
+ * <br>
+ * When {@link TestCtx#isLazyTests()}, test methods are added as {@link TestLazyBentley} and instantiated only when run.
+ * <br>
+ * <br>
+ * When {@link TestCtx#getTimingStore()} is set, the duration of each test method is recorded. Parallel work is then
+ * queued longest first, so that the slowest tests do not start last.
+ * With {@link ITechTesting#ENGINE_FLAG_04_FAILED_FIRST}, tests that failed in their last run are run first.
+ * <br>
+ * <br>
+ * The root suite saves the {@link TestCtx#getResultCache()} and prints how many tests were passed from it.
+ * <br>
+ * <br>
+ * With a {@link TestCtx#getCoverageIndex()}, {@link TestSuiteBentley#createAffectedSuite(Collection)} keeps only the tests
+ * affected by a list of changed classes.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestSuiteBentley extends TestSuite implements ITechTesting {
 
-   protected final TestCtx tc;
+   /**
+    * Set on worker threads and on the calling thread while it runs {@link ITestSerial} tests.
+    * Nested suites run by those threads are run serially
+    */
+   private static final ThreadLocal<TestCtx> workerCtx = new ThreadLocal<TestCtx>();
+
+   /**
+    * Outermost suite run by the calling thread. It saves the {@link TestTimingStore}
+    */
+   private static final ThreadLocal<TestSuiteBentley> rootSuite = new ThreadLocal<TestSuiteBentley>();
+
+   /**
+    * Class whose tests were added by {@link TestSuiteBentley#TestSuiteBentley(TestCtx, Class)}. null otherwise
+    */
+   private Class<?>                          testClass;
+
+   protected final TestCtx                   tc;
 
    public TestSuiteBentley() {
       tc = new TestCtx(new UCtx());
@@ -52,57 +113,360 @@ public class TestSuiteBentley extends TestSuite {
     */
    public TestSuiteBentley(TestCtx tc, final Class<?> theClass) {
       this.tc = tc;
+      this.testClass = theClass;
       addTestsFromTestCase(theClass);
    }
 
-   private void addTestsFromTestCase(final Class<?> theClass) {
-      String className = theClass.getName();
-      setName(className);
+   /**
+    * Adds test to serial when its class is {@link ITestSerial}, to units otherwise.
+    * <br>
+    * With {@link ITechTesting#PARALLEL_1_CLASS}, class suites are units. Otherwise suites are opened down to their tests.
+    * @param test
+    * @param mode
+    * @param units
+    * @param serial
+    */
+   private void collectUnits(Test test, int mode, List<Test> units, List<Test> serial) {
+      if (test instanceof TestSuite) {
+         if (mode == PARALLEL_1_CLASS && test instanceof TestSuiteBentley && ((TestSuiteBentley) test).testClass != null) {
+            addUnit(test, ((TestSuiteBentley) test).testClass, units, serial);
+         } else {
+            Enumeration<Test> e = ((TestSuite) test).tests();
+            while (e.hasMoreElements()) {
+               collectUnits(e.nextElement(), mode, units, serial);
+            }
+         }
+      } else if (test instanceof TestLazyBentley) {
+         addUnit(test, ((TestLazyBentley) test).getTestClass(), units, serial);
+      } else {
+         addUnit(test, test.getClass(), units, serial);
+      }
+   }
+
+   private void addUnit(Test test, Class<?> cl, List<Test> units, List<Test> serial) {
+      if (ITestSerial.class.isAssignableFrom(cl)) {
+         serial.add(test);
+      } else {
+         units.add(test);
+      }
+   }
+
+   /**
+    * Suite of the test methods of this suite that loaded one of the changed classes, according to {@link TestCtx#getCoverageIndex()}.
+    * <br>
+    * Test methods missing from the index are always kept, so that new tests run before they are recorded.
+    * @param changedClasses binary names, such as a.b.Foo. Nested classes of a changed class are included
+    * @return this when no coverage index is set
+    */
+   public TestSuiteBentley createAffectedSuite(Collection<String> changedClasses) {
+      TestCoverageIndex index = tc.getCoverageIndex();
+      if (index == null) {
+         return this;
+      }
+      Set<String> changed = new HashSet<String>(changedClasses);
+      List<Test> tests = new ArrayList<Test>();
+      collectUnits(this, PARALLEL_2_METHOD, tests, tests);
+      TestSuiteBentley suite = new TestSuiteBentley(tc, getName() + " affected by " + changed.size() + " classes");
+      for (Test test : tests) {
+         String key = getTestKey(test);
+         if (key == null || index.isAffected(key, changed)) {
+            suite.addTest(test);
+         }
+      }
+      return suite;
+   }
+
+   /**
+    * Creates the {@link TestCtx} of a worker thread, with its own {@link UCtx}.
+    * <br>
+    * Sub classes using a specialized {@link TestCtx} override this method.
+    * @return
+    */
+   protected TestCtx createWorkerTestCtx() {
+      TestCtx wtc = new TestCtx(new UCtx());
+      wtc.copyConfigFrom(tc);
+      return wtc;
+   }
+
+   /**
+    * Runs the tests of the suite. Concurrently when {@link TestCtx#getParallelMode()} is set.
+    */
+   public void run(TestResult result) {
+      boolean isRoot = workerCtx.get() == null && rootSuite.get() == null;
+      if (isRoot) {
+         rootSuite.set(this);
+      }
       try {
-         getTestConstructor(theClass); // Avoid generating multiple error messages
-      } catch (NoSuchMethodException e) {
-         addTest(warning("Class " + theClass.getName() + " has no public constructor TestCase(String name) or TestCase()"));
+         if (workerCtx.get() != null) {
+            super.run(result);
+         } else if (tc.getParallelMode() != PARALLEL_0_NONE) {
+            runParallel(result);
+         } else if (isRoot && tc.getTimingStore() != null && tc.hasEngineFlag(ENGINE_FLAG_04_FAILED_FIRST)) {
+            runFailedFirst(result);
+         } else {
+            super.run(result);
+         }
+      } finally {
+         if (isRoot) {
+            rootSuite.remove();
+            TestTimingStore store = tc.getTimingStore();
+            if (store != null) {
+               store.save();
+            }
+            TestResultCache cache = tc.getResultCache();
+            if (cache != null) {
+               int hits = cache.takeHits();
+               if (hits > 0) {
+                  TestCaseBentley.getOutputRouter().getConsole().println(hits + " unchanged tests passed from the result cache " + cache.getFile());
+               }
+               cache.save();
+            }
+         }
+      }
+   }
+
+   /**
+    * Runs the test methods one after the other, those that failed in their last run first
+    * @param result
+    */
+   private void runFailedFirst(TestResult result) {
+      List<Test> tests = new ArrayList<Test>();
+      collectUnits(this, PARALLEL_2_METHOD, tests, tests);
+      sortUnits(tests);
+      for (Test test : tests) {
+         if (result.shouldStop()) {
+            break;
+         }
+         runTimed(test, result);
+      }
+   }
+
+   /**
+    * Runs test and records its duration when it is a test method and timings are recorded
+    * @param test
+    * @param result counts only the tests of the calling thread
+    */
+   private void runTimed(Test test, TestResult result) {
+      TestTimingStore store = tc.getTimingStore();
+      String key = store == null ? null : getTestKey(test);
+      if (key == null) {
+         test.run(result);
          return;
       }
+      int bad = result.failureCount() + result.errorCount();
+      long start = System.nanoTime();
+      test.run(result);
+      long millis = (System.nanoTime() - start) / 1000000L;
+      store.record(key, millis, result.failureCount() + result.errorCount() > bad);
+   }
 
-      if (!Modifier.isPublic(theClass.getModifiers())) {
-         addTest(warning("Class " + theClass.getName() + " is not public"));
+   public void runTest(Test test, TestResult result) {
+      runTimed(test, result);
+   }
+
+   /**
+    * Key of test in the {@link TestTimingStore} and the {@link TestCoverageIndex}
+    * @param test
+    * @return null when test is not a test method
+    */
+   private static String getTestKey(Test test) {
+      if (test instanceof TestCase) {
+         return test.getClass().getName() + "#" + ((TestCase) test).getName();
+      } else if (test instanceof TestLazyBentley) {
+         TestLazyBentley lazy = (TestLazyBentley) test;
+         return lazy.getTestClass().getName() + "#" + lazy.getName();
+      }
+      return null;
+   }
+
+   /**
+    * Orders units longest first, or failed first with {@link ITechTesting#ENGINE_FLAG_04_FAILED_FIRST}.
+    * Units never recorded are estimated at the mean duration. Sort is stable
+    * @param units
+    */
+   private void sortUnits(List<Test> units) {
+      final TestTimingStore store = tc.getTimingStore();
+      if (store == null || store.size() == 0) {
          return;
       }
+      final boolean isFailedFirst = tc.hasEngineFlag(ENGINE_FLAG_04_FAILED_FIRST);
+      final boolean isLongestFirst = tc.getParallelMode() != PARALLEL_0_NONE;
+      final long mean = store.getMeanMillis();
+      final HashMap<Test, long[]> keys = new HashMap<Test, long[]>();
+      for (Test unit : units) {
+         long millis;
+         long failure;
+         if (unit instanceof TestSuiteBentley && ((TestSuiteBentley) unit).testClass != null) {
+            String className = ((TestSuiteBentley) unit).testClass.getName();
+            millis = store.getClassMillis(className);
+            failure = store.getClassFailure(className);
+         } else {
+            String key = getTestKey(unit);
+            millis = key == null ? -1 : store.getMillis(key);
+            failure = key == null ? 0 : store.getFailure(key);
+         }
+         keys.put(unit, new long[] { millis < 0 ? mean : millis, failure });
+      }
+      Collections.sort(units, new Comparator<Test>() {
+         public int compare(Test a, Test b) {
+            long[] ka = keys.get(a);
+            long[] kb = keys.get(b);
+            if (isFailedFirst && ka[1] != kb[1]) {
+               return ka[1] > kb[1] ? -1 : 1;
+            }
+            if (isLongestFirst && ka[0] != kb[0]) {
+               return ka[0] > kb[0] ? -1 : 1;
+            }
+            return 0;
+         }
+      });
+   }
+
+   private void runParallel(final TestResult result) {
+      List<Test> units = new ArrayList<Test>();
+      List<Test> serial = new ArrayList<Test>();
+      collectUnits(this, tc.getParallelMode(), units, serial);
+      sortUnits(units);
 
-      Class<?> superClass = theClass;
-      List<String> names = new ArrayList<String>();
-      while (Test.class.isAssignableFrom(superClass)) {
-         for (Method each : superClass.getDeclaredMethods()) {
-            addTestMethod(each, names, theClass);
+      TestOutputRouter router = TestCaseBentley.getOutputRouter();
+      ExecutorService pool = Executors.newFixedThreadPool(tc.getParallelThreads(), new WorkerThreadFactory(getName()));
+      try {
+         List<Future<?>> futures = new ArrayList<Future<?>>(units.size());
+         for (final Test unit : units) {
+            futures.add(pool.submit(router.propagate(new Runnable() {
+               public void run() {
+                  runUnit(unit, result);
+               }
+            })));
          }
-         superClass = superClass.getSuperclass();
+         for (Future<?> future : futures) {
+            try {
+               future.get();
+            } catch (ExecutionException e) {
+               //runUnit reports its errors. Should not happen
+               e.getCause().printStackTrace();
+            }
+         }
+      } catch (InterruptedException e) {
+         result.stop();
+         Thread.currentThread().interrupt();
+      } finally {
+         pool.shutdownNow();
       }
-      if (testCount() == 0) {
-         addTest(warning("No tests found in " + theClass.getName()));
+
+      //serial suites must not go parallel again
+      workerCtx.set(tc);
+      try {
+         for (Test test : serial) {
+            if (result.shouldStop()) {
+               break;
+            }
+            runTest(test, result);
+         }
+      } finally {
+         workerCtx.remove();
       }
    }
 
-   private boolean isPublicTestMethod(Method m) {
-      return isTestMethod(m) && Modifier.isPublic(m.getModifiers());
+   /**
+    * Runs unit on a worker thread with the worker {@link TestCtx}
+    * @param unit
+    * @param result master result
+    */
+   private void runUnit(Test unit, TestResult result) {
+      if (result.shouldStop()) {
+         return;
+      }
+      TestCtx wtc = workerCtx.get();
+      if (wtc == null) {
+         wtc = createWorkerTestCtx();
+         workerCtx.set(wtc);
+      }
+      setTestCtx(unit, wtc);
+      TestResultAggregator aggregator = new TestResultAggregator(result);
+      try {
+         runTimed(unit, aggregator);
+      } catch (Throwable e) {
+         aggregator.startTest(unit);
+         aggregator.addError(unit, e);
+         aggregator.endTest(unit);
+      }
    }
 
-   private boolean isTestMethod(Method m) {
-      return m.getParameterTypes().length == 0 && m.getName().startsWith("test") && m.getReturnType().equals(Void.TYPE);
+   /**
+    * Sets wtc to all {@link TestCaseBentley} of test that have not started yet
+    * @param test
+    * @param wtc
+    */
+   private void setTestCtx(Test test, TestCtx wtc) {
+      if (test instanceof TestSuite) {
+         Enumeration<Test> e = ((TestSuite) test).tests();
+         while (e.hasMoreElements()) {
+            setTestCtx(e.nextElement(), wtc);
+         }
+      } else if (test instanceof TestCaseBentley) {
+         TestCaseBentley testBentley = (TestCaseBentley) test;
+         if (!testBentley.isSetup()) {
+            testBentley.setTestCtx(wtc);
+         }
+      } else if (test instanceof TestLazyBentley) {
+         ((TestLazyBentley) test).setTestCtx(wtc);
+      }
    }
 
-   private void addTestMethod(Method m, List<String> names, Class<?> theClass) {
-      String name = m.getName();
-      if (names.contains(name)) {
+   private void addTestsFromTestCase(final Class<?> theClass) {
+      String className = theClass.getName();
+      setName(className);
+      TestClassInfo info = getClassInfo(theClass);
+      if (info.getConstructor() == null) {
+         // Avoid generating multiple error messages
+         addTest(warning("Class " + theClass.getName() + " has no public constructor TestCase(String name) or TestCase()"));
          return;
       }
-      if (!isPublicTestMethod(m)) {
-         if (isTestMethod(m))
-            addTest(warning("Test method isn't public: " + m.getName() + "(" + theClass.getCanonicalName() + ")"));
+
+      if (!info.isPublic()) {
+         addTest(warning("Class " + theClass.getName() + " is not public"));
          return;
       }
-      names.add(name);
-      addTest(createTestBentley(theClass, name));
+
+      List<String> names = info.getMethodNames();
+      List<String> warnings = info.getWarnings();
+      int w = 0;
+      for (int i = 0; i < names.size(); i++) {
+         //warnings at their discovery position, as TestSuite does
+         while (w < warnings.size() && info.getWarningPosition(w) <= i) {
+            addTest(warning(warnings.get(w++)));
+         }
+         String name = names.get(i);
+         if (tc.isLazyTests()) {
+            addTest(new TestLazyBentley(this, theClass, name));
+         } else {
+            addTest(createTestBentley(theClass, name));
+         }
+      }
+      while (w < warnings.size()) {
+         addTest(warning(warnings.get(w++)));
+      }
+      if (testCount() == 0) {
+         addTest(warning("No tests found in " + theClass.getName()));
+      }
+   }
+
+   /**
+    * Returns the {@link TestClassInfo} of theClass from the {@link TestDiscoveryCache}, the {@link TestIndex}
+    * of {@link TestCtx} or by reflection, in that order
+    * @param theClass
+    * @return
+    */
+   private TestClassInfo getClassInfo(Class<?> theClass) {
+      TestClassInfo info = TestDiscoveryCache.getCached(theClass);
+      if (info == null && tc.getTestIndex() != null) {
+         info = tc.getTestIndex().getInfo(theClass);
+      }
+      if (info == null) {
+         info = TestDiscoveryCache.getInfo(theClass);
+      }
+      return info;
    }
 
    /**
@@ -110,13 +474,30 @@ public class TestSuiteBentley extends TestSuite {
     * mountains, our intrepid adventurers type...
     */
    public Test createTestBentley(Class<?> theClass, String name) {
-      Constructor<?> constructor;
-      try {
-         constructor = getTestConstructor(theClass);
-      } catch (NoSuchMethodException e) {
+      return createTestBentley(tc, theClass, name);
+   }
+
+   /**
+    * Creates the test method name of theClass with the given {@link TestCtx}
+    * @param tc null for the suite {@link TestCtx}
+    * @param theClass
+    * @param name
+    * @return
+    */
+   public Test createTestBentley(TestCtx tc, Class<?> theClass, String name) {
+      if (tc == null) {
+         tc = this.tc;
+      }
+      Constructor<?> constructor = TestDiscoveryCache.getInfo(theClass).getConstructor();
+      if (constructor == null) {
          return warning("Class " + theClass.getName() + " has no public constructor TestCase(String name) or TestCase()");
       }
       Object test;
+      //constructor binds its own capture stream to this thread
+      TestOutputRouter router = TestCaseBentley.getOutputRouter();
+      OutputStream callerBinding = router.getBinding();
+      //constructor takes its UCtx from the pool if any
+      TestCtxPool.setCurrent(tc.getCtxPool());
       try {
          if (constructor.getParameterTypes().length == 0) {
             test = constructor.newInstance(new Object[0]);
@@ -136,6 +517,13 @@ public class TestSuiteBentley extends TestSuite {
          return (warning("Exception in constructor: " + name + " (" + exceptionToString(e.getTargetException()) + ")"));
       } catch (IllegalAccessException e) {
          return (warning("Cannot access test case: " + name + " (" + exceptionToString(e) + ")"));
+      } finally {
+         TestCtxPool.setCurrent(null);
+         if (callerBinding == null) {
+            router.unbind();
+         } else {
+            router.bind(callerBinding);
+         }
       }
       return (Test) test;
    }
@@ -150,4 +538,24 @@ public class TestSuiteBentley extends TestSuite {
       return stringWriter.toString();
    }
 
+   /**
+    * Daemon worker threads named after the suite
+    */
+   private static class WorkerThreadFactory implements ThreadFactory {
+
+      private final AtomicInteger count = new AtomicInteger();
+
+      private final String        name;
+
+      WorkerThreadFactory(String name) {
+         this.name = name;
+      }
+
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "TestSuiteBentley-" + name + "-" + count.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      }
+   }
+
 }
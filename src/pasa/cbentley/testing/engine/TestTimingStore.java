@@ -0,0 +1,274 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import pasa.cbentley.testing.ctx.TestCtx;
+
+/**
+ * Durations and failures of test methods, kept across runs in a local file.
+ * <br>
+ * Recorded by {@link TestSuiteBentley} when {@link TestCtx#setTimingFile(File)} is set. The next run orders its work
+ * longest first, and failed first with {@link ITechTesting#ENGINE_FLAG_04_FAILED_FIRST}.
+ * <br>
+ * <br>
+ * The duration is smoothed over runs, each new measure counting for half.
+ * <br>
+ * Each {@link TestTimingStore#save()} ends a run. Methods not recorded during the last {@link TestTimingStore#UNSEEN_RUNS_MAX} runs,
+ * usually removed or renamed, are dropped.
+ * <br>
+ * Text format, one test method per line
+ * <li> <code>#pasa.testing.timings 2</code> header
+ * <li> <code>className#method millis lastFailureTime failedLastRun lastRun</code>
+ * <br>
+ * Thread safe. A corrupted or missing file starts an empty store. Files of version 1 are read, without the last run.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestTimingStore {
+
+   private static class Entry {
+
+      boolean isFailedLast;
+
+      /**
+       * Epoch millis of the last failure. 0 if never failed
+       */
+      long    lastFailure;
+
+      /**
+       * Run in which the method was last recorded
+       */
+      long    lastRun;
+
+      long    millis;
+   }
+
+   public static final String  HEADER          = "#pasa.testing.timings 2";
+
+   private static final String HEADER_1        = "#pasa.testing.timings 1";
+
+   /**
+    * Number of runs after which a method not recorded is dropped
+    */
+   public static final int     UNSEEN_RUNS_MAX = 50;
+
+   private final HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+   private final File                   file;
+
+   private boolean                      isDirty;
+
+   private boolean                      isLoaded;
+
+   /**
+    * Current run. One more than the last run of the file
+    */
+   private long                         run;
+
+   public TestTimingStore(File file) {
+      this.file = file;
+   }
+
+   private void ensureLoaded() {
+      if (isLoaded) {
+         return;
+      }
+      isLoaded = true;
+      if (!file.exists()) {
+         return;
+      }
+      try {
+         BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+         try {
+            String line = br.readLine();
+            int fields;
+            if (HEADER.equals(line)) {
+               fields = 5;
+            } else if (HEADER_1.equals(line)) {
+               fields = 4;
+            } else {
+               return;
+            }
+            while ((line = br.readLine()) != null) {
+               String[] parts = line.split(" ");
+               if (parts.length != fields) {
+                  continue;
+               }
+               Entry e = new Entry();
+               e.millis = Long.parseLong(parts[1]);
+               e.lastFailure = Long.parseLong(parts[2]);
+               e.isFailedLast = "1".equals(parts[3]);
+               if (fields == 5) {
+                  e.lastRun = Long.parseLong(parts[4]);
+                  run = Math.max(run, e.lastRun + 1);
+               }
+               entries.put(parts[0], e);
+            }
+         } finally {
+            br.close();
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+      } catch (NumberFormatException e) {
+         //corrupted. what was read is kept
+      }
+   }
+
+   /**
+    * Sum of the durations of the recorded methods of className
+    * @param className
+    * @return -1 if no method was recorded
+    */
+   public synchronized long getClassMillis(String className) {
+      ensureLoaded();
+      String prefix = className + "#";
+      long sum = -1;
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+         if (e.getKey().startsWith(prefix)) {
+            sum = (sum < 0 ? 0 : sum) + e.getValue().millis;
+         }
+      }
+      return sum;
+   }
+
+   /**
+    * Most recent failure among the methods of className that failed in their last run
+    * @param className
+    * @return 0 if none
+    */
+   public synchronized long getClassFailure(String className) {
+      ensureLoaded();
+      String prefix = className + "#";
+      long last = 0;
+      for (Map.Entry<String, Entry> e : entries.entrySet()) {
+         Entry entry = e.getValue();
+         if (entry.isFailedLast && e.getKey().startsWith(prefix)) {
+            last = Math.max(last, entry.lastFailure);
+         }
+      }
+      return last;
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * Time of the last failure of key when it failed in its last run
+    * @param key
+    * @return 0 if it passed in its last run or was never recorded
+    */
+   public synchronized long getFailure(String key) {
+      ensureLoaded();
+      Entry e = entries.get(key);
+      if (e == null || !e.isFailedLast) {
+         return 0;
+      }
+      return e.lastFailure;
+   }
+
+   /**
+    * Average duration of the recorded methods. Estimate for methods never run
+    * @return 0 if empty
+    */
+   public synchronized long getMeanMillis() {
+      ensureLoaded();
+      if (entries.isEmpty()) {
+         return 0;
+      }
+      long sum = 0;
+      for (Entry e : entries.values()) {
+         sum += e.millis;
+      }
+      return sum / entries.size();
+   }
+
+   /**
+    * 
+    * @param key className#method
+    * @return -1 if never recorded
+    */
+   public synchronized long getMillis(String key) {
+      ensureLoaded();
+      Entry e = entries.get(key);
+      return e == null ? -1 : e.millis;
+   }
+
+   /**
+    * Records a run of a test method
+    * @param key className#method
+    * @param millis
+    * @param isFailed
+    */
+   public synchronized void record(String key, long millis, boolean isFailed) {
+      ensureLoaded();
+      Entry e = entries.get(key);
+      if (e == null) {
+         e = new Entry();
+         e.millis = millis;
+         entries.put(key, e);
+      } else {
+         e.millis = (e.millis + millis) / 2;
+      }
+      e.isFailedLast = isFailed;
+      e.lastRun = run;
+      if (isFailed) {
+         e.lastFailure = System.currentTimeMillis();
+      }
+      isDirty = true;
+   }
+
+   /**
+    * Ends the run. Drops the methods not recorded for {@link TestTimingStore#UNSEEN_RUNS_MAX} runs
+    * and replaces the file if records were added since the last save
+    */
+   public synchronized void save() {
+      if (!isDirty) {
+         return;
+      }
+      Iterator<Entry> it = entries.values().iterator();
+      while (it.hasNext()) {
+         if (run - it.next().lastRun >= UNSEEN_RUNS_MAX) {
+            it.remove();
+         }
+      }
+      AtomicFile af = new AtomicFile(file);
+      try {
+         Writer w = af.startWrite();
+         try {
+            w.write(HEADER);
+            w.write('\n');
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+               Entry e = me.getValue();
+               w.write(me.getKey() + " " + e.millis + " " + e.lastFailure + " " + (e.isFailedLast ? "1" : "0") + " " + e.lastRun + "\n");
+            }
+         } catch (IOException e) {
+            af.failWrite(w);
+            throw e;
+         }
+         af.finishWrite(w);
+         isDirty = false;
+         run++;
+      } catch (IOException e) {
+         e.printStackTrace();
+      }
+   }
+
+   public synchronized int size() {
+      ensureLoaded();
+      return entries.size();
+   }
+}
@@ -0,0 +1,195 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.AssertionFailedError;
+
+/**
+ * Watches a test method for deadlocks, on a daemon thread polling {@link ThreadMXBean#findDeadlockedThreads()}.
+ * <br>
+ * <br>
+ * When threads deadlock, the watchdog
+ * <li> dumps the stacks of all threads into the test output
+ * <li> records the failure with {@link TestCaseBentley#addThreadFailure(Throwable)}, which wakes up lockWait, latches and barriers
+ * <li> interrupts the watched thread
+ * <br>
+ * A test thread that is itself part of the deadlock cannot be woken up. Set {@link pasa.cbentley.testing.ctx.TestCtx#setTestTimeoutMillis(long)}
+ * so that the test body runs on its own thread and {@link TestCaseBentley#runBare()} can give up on it.
+ * <br>
+ * <br>
+ * Deadlocks that existed before {@link TestWatchdog#start(Thread)} are ignored.
+ * <br>
+ * <br>
+ * Used by {@link TestCaseBentley#runBare()} when {@link ITechTesting#ENGINE_FLAG_03_WATCHDOG} is set.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestWatchdog implements Runnable {
+
+   /**
+    * Millis between two deadlock checks
+    */
+   public static final long PERIOD_DEFAULT = 250;
+
+   /**
+    * Prints the stacks of all threads to out. Deadlocked threads first, with their lock information
+    * @param out
+    * @param title
+    */
+   public static void dumpThreads(PrintStream out, String title) {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      out.println("#Watchdog " + title);
+      long[] ids = bean.findDeadlockedThreads();
+      if (ids != null) {
+         out.println("#Deadlocked threads");
+         ThreadInfo[] infos = bean.getThreadInfo(ids, true, true);
+         for (ThreadInfo info : infos) {
+            if (info != null) {
+               out.print(info);
+            }
+         }
+      }
+      out.println("#All threads");
+      for (Map.Entry<Thread, StackTraceElement[]> e : Thread.getAllStackTraces().entrySet()) {
+         Thread t = e.getKey();
+         out.println("\"" + t.getName() + "\" daemon=" + t.isDaemon() + " " + t.getState());
+         for (StackTraceElement ste : e.getValue()) {
+            out.println("\tat " + ste);
+         }
+         out.println();
+      }
+      out.flush();
+   }
+
+   private final ThreadMXBean    bean;
+
+   private Set<Long>             ignored;
+
+   private volatile boolean      isFired;
+
+   private boolean               isStopped;
+
+   private final PrintStream     out;
+
+   private final TestCaseBentley test;
+
+   private Thread                watched;
+
+   /**
+    * 
+    * @param test receives the failure
+    * @param out stream of the thread dump, usually the capture of the test method
+    */
+   public TestWatchdog(TestCaseBentley test, PrintStream out) {
+      this.test = test;
+      this.out = out;
+      this.bean = ManagementFactory.getThreadMXBean();
+   }
+
+   private void fire(long[] ids) {
+      isFired = true;
+      StringBuilder sb = new StringBuilder("Deadlock detected between threads");
+      ThreadInfo[] infos = bean.getThreadInfo(ids);
+      for (ThreadInfo info : infos) {
+         if (info != null) {
+            sb.append(" \"").append(info.getThreadName()).append("\"");
+            if (info.getLockOwnerName() != null) {
+               sb.append(" waiting for ").append(info.getLockName()).append(" held by \"").append(info.getLockOwnerName()).append("\"");
+            }
+         }
+      }
+      String message = sb.toString();
+      dumpThreads(out, message);
+      test.addThreadFailure(new AssertionFailedError(message));
+      watched.interrupt();
+   }
+
+   /**
+    * Ids of the deadlocked threads not ignored
+    * @return null if none
+    */
+   private long[] findNewDeadlocks() {
+      long[] ids = bean.findDeadlockedThreads();
+      if (ids == null) {
+         return null;
+      }
+      int count = 0;
+      for (int i = 0; i < ids.length; i++) {
+         if (!ignored.contains(ids[i])) {
+            ids[count++] = ids[i];
+         }
+      }
+      if (count == 0) {
+         return null;
+      }
+      long[] news = new long[count];
+      System.arraycopy(ids, 0, news, 0, count);
+      return news;
+   }
+
+   /**
+    * True once a deadlock has been reported
+    * @return
+    */
+   public boolean isFired() {
+      return isFired;
+   }
+
+   public void run() {
+      synchronized (this) {
+         while (!isStopped) {
+            try {
+               wait(PERIOD_DEFAULT);
+            } catch (InterruptedException e) {
+               return;
+            }
+            if (isStopped) {
+               return;
+            }
+            long[] ids = findNewDeadlocks();
+            if (ids != null) {
+               //under the lock, so that nothing is reported once stop returns
+               fire(ids);
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * Starts watching on a daemon thread
+    * @param watched thread interrupted when a deadlock is detected
+    */
+   public void start(Thread watched) {
+      this.watched = watched;
+      ignored = new HashSet<Long>();
+      long[] ids = bean.findDeadlockedThreads();
+      if (ids != null) {
+         for (int i = 0; i < ids.length; i++) {
+            ignored.add(ids[i]);
+         }
+      }
+      Thread t = new Thread(this, watched.getName() + "-watchdog");
+      t.setDaemon(true);
+      t.start();
+   }
+
+   /**
+    * Stops watching. Waits for a deadlock report in progress
+    */
+   public synchronized void stop() {
+      isStopped = true;
+      notifyAll();
+   }
+}
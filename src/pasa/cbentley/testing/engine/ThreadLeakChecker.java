@@ -0,0 +1,88 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Finds threads started during a test method and still alive at its end.
+ * <br>
+ * Daemon threads are checked as well. They do not keep the JVM alive but still run code of the test,
+ * like the {@link TestExecutor} threads. Threads of other tests running concurrently
+ * would be reported, so the check is only meaningful when tests run one after the other.
+ * <br>
+ * Enabled by {@link ITechTesting#ENGINE_FLAG_02_CHECK_THREAD_LEAKS}.
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class ThreadLeakChecker {
+
+   /**
+    * Time given to threads to finish on their own
+    */
+   public static final long GRACE_DEFAULT = 100;
+
+   /**
+    * Live threads of the JVM. Cheaper than {@link Thread#getAllStackTraces()}
+    * @return
+    */
+   private static Thread[] getLiveThreads() {
+      ThreadGroup root = Thread.currentThread().getThreadGroup();
+      while (root.getParent() != null) {
+         root = root.getParent();
+      }
+      Thread[] threads = new Thread[root.activeCount() + 16];
+      int count = root.enumerate(threads, true);
+      while (count == threads.length) {
+         threads = new Thread[threads.length * 2];
+         count = root.enumerate(threads, true);
+      }
+      return Arrays.copyOf(threads, count);
+   }
+
+   private Set<Thread> before;
+
+   /**
+    * Snapshots the live threads
+    */
+   public void start() {
+      before = new HashSet<Thread>(Arrays.asList(getLiveThreads()));
+   }
+
+   /**
+    * Threads alive now that were not alive at {@link ThreadLeakChecker#start()}.
+    * <br>
+    * Each candidate is given up to graceMillis in total to terminate.
+    * @param graceMillis
+    * @return empty list if none
+    */
+   public List<Thread> check(long graceMillis) {
+      List<Thread> leaks = new ArrayList<Thread>();
+      long deadline = System.currentTimeMillis() + graceMillis;
+      for (Thread t : getLiveThreads()) {
+         if (before.contains(t) || t == Thread.currentThread()) {
+            continue;
+         }
+         long left = deadline - System.currentTimeMillis();
+         if (left > 0) {
+            try {
+               t.join(left);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         if (t.isAlive()) {
+            leaks.add(t);
+         }
+      }
+      return leaks;
+   }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link CaptureBufferHeadTail}
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class CaptureBufferHeadTailTest extends TestCase {
+
+   static String read(ICaptureBuffer buffer) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      InputStream in = buffer.getInputStream();
+      byte[] b = new byte[7];
+      int n;
+      while ((n = in.read(b)) != -1) {
+         out.write(b, 0, n);
+      }
+      in.close();
+      return out.toString("ISO-8859-1");
+   }
+
+   static String writeTo(ICaptureBuffer buffer) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      buffer.writeTo(out);
+      return out.toString("ISO-8859-1");
+   }
+
+   private static void write(ICaptureBuffer buffer, String str) {
+      byte[] b = str.getBytes();
+      buffer.write(b, 0, b.length);
+   }
+
+   public void testByteWrites() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(3, 4);
+      String str = "0123456789";
+      for (int i = 0; i < str.length(); i++) {
+         buffer.write(str.charAt(i));
+      }
+      assertEquals(3, buffer.getDropped());
+      assertEquals(7, buffer.getSize());
+      assertEquals("012\n[... 3 bytes dropped ...]\n6789", read(buffer));
+      assertEquals(read(buffer), writeTo(buffer));
+   }
+
+   public void testFitsInHead() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(8, 4);
+      write(buffer, "abcdefgh");
+      assertEquals(0, buffer.getDropped());
+      assertEquals("abcdefgh", read(buffer));
+      assertEquals("abcdefgh", writeTo(buffer));
+   }
+
+   public void testFitsInHeadAndTail() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(4, 4);
+      write(buffer, "abcdef");
+      write(buffer, "gh");
+      assertEquals(0, buffer.getDropped());
+      assertEquals(8, buffer.getSize());
+      assertEquals("abcdefgh", read(buffer));
+      assertEquals("abcdefgh", writeTo(buffer));
+   }
+
+   public void testLargeWriteReplacesTail() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(2, 3);
+      write(buffer, "abcd");
+      write(buffer, "0123456789");
+      assertEquals(9, buffer.getDropped());
+      assertEquals("ab\n[... 9 bytes dropped ...]\n789", read(buffer));
+      assertEquals(read(buffer), writeTo(buffer));
+   }
+
+   public void testReset() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(2, 2);
+      write(buffer, "abcdefgh");
+      buffer.reset();
+      assertEquals(0, buffer.getDropped());
+      assertEquals(0, buffer.getSize());
+      assertEquals("", read(buffer));
+      write(buffer, "xyz");
+      assertEquals("xyz", read(buffer));
+   }
+
+   public void testRingWrapsAround() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(2, 4);
+      write(buffer, "ab");
+      write(buffer, "cde");
+      write(buffer, "fgh");
+      write(buffer, "i");
+      assertEquals(3, buffer.getDropped());
+      assertEquals(6, buffer.getSize());
+      assertEquals("ab\n[... 3 bytes dropped ...]\nfghi", read(buffer));
+      assertEquals(read(buffer), writeTo(buffer));
+   }
+
+   public void testNoTail() throws IOException {
+      CaptureBufferHeadTail buffer = new CaptureBufferHeadTail(2, 0);
+      write(buffer, "abcde");
+      buffer.write('f');
+      assertEquals(4, buffer.getDropped());
+      assertEquals("ab\n[... 4 bytes dropped ...]\n", read(buffer));
+      assertEquals(read(buffer), writeTo(buffer));
+   }
+}
@@ -0,0 +1,104 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that {@link CaptureBufferChunked} and {@link CaptureBufferSpill} give back the bytes written,
+ * the same through {@link ICaptureBuffer#writeTo(java.io.OutputStream)} and {@link ICaptureBuffer#getInputStream()}
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class CaptureBufferTest extends TestCase {
+
+   /**
+    * Bytes 0 to len - 1 of a pattern that does not repeat every power of 2
+    * @param len
+    * @return
+    */
+   private static String createContent(int len) {
+      StringBuilder sb = new StringBuilder(len);
+      for (int i = 0; i < len; i++) {
+         sb.append((char) ('a' + i % 23));
+      }
+      return sb.toString();
+   }
+
+   /**
+    * Writes content mixing array and single byte writes of various sizes
+    * @param buffer
+    * @param content
+    */
+   private static void write(ICaptureBuffer buffer, String content) {
+      byte[] b = content.getBytes();
+      int off = 0;
+      int step = 1;
+      while (off < b.length) {
+         int len = Math.min(step, b.length - off);
+         if (len == 1) {
+            buffer.write(b[off]);
+         } else {
+            buffer.write(b, off, len);
+         }
+         off += len;
+         step = step * 3 % 5000 + 1;
+      }
+   }
+
+   private void assertContent(ICaptureBuffer buffer, String content) throws IOException {
+      assertEquals(content.length(), buffer.getSize());
+      String written = CaptureBufferHeadTailTest.writeTo(buffer);
+      assertEquals(content, written);
+      assertEquals(content, CaptureBufferHeadTailTest.read(buffer));
+   }
+
+   private void assertRoundTrip(ICaptureBuffer buffer) throws IOException {
+      assertContent(buffer, "");
+      int[] sizes = { 1, 100, 1024, 1025, 70000, 300000 };
+      for (int i = 0; i < sizes.length; i++) {
+         buffer.reset();
+         String content = createContent(sizes[i]);
+         write(buffer, content);
+         assertContent(buffer, content);
+      }
+      buffer.release();
+   }
+
+   public void testChunked() throws IOException {
+      assertRoundTrip(new CaptureBufferChunked());
+   }
+
+   public void testSpill() throws IOException {
+      assertRoundTrip(new CaptureBufferSpill(4096, null));
+   }
+
+   public void testSpillFailureKeepsHeadAndTail() throws IOException {
+      CaptureBufferSpill buffer = new CaptureBufferSpill(64, new File("does/not/exist/" + System.nanoTime()));
+      String content = createContent(1000);
+      write(buffer, content);
+      assertTrue(buffer.isSpillFailed());
+      String written = CaptureBufferHeadTailTest.writeTo(buffer);
+      assertEquals(written, CaptureBufferHeadTailTest.read(buffer));
+      assertTrue(written, written.startsWith(content.substring(0, 64) + "\n[capture spill failed: "));
+      assertTrue(written, written.endsWith(content.substring(1000 - 64)));
+      assertTrue(written, written.indexOf(" bytes dropped ...]") > 0);
+   }
+
+   public void testSpillReadWhileWriting() throws IOException {
+      CaptureBufferSpill buffer = new CaptureBufferSpill(1024, null);
+      String content = createContent(5000);
+      write(buffer, content);
+      String read = CaptureBufferHeadTailTest.read(buffer);
+      write(buffer, content);
+      assertEquals(content, read);
+      assertContent(buffer, content + content);
+      buffer.release();
+   }
+}
@@ -0,0 +1,142 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import junit.framework.TestCase;
+import pasa.cbentley.core.src4.ctx.UCtx;
+
+/**
+ * Tests the bucket boundaries of {@link LatencyHistogram}
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class LatencyHistogramTest extends TestCase {
+
+   private UCtx uc;
+
+   /**
+    * Value reported for the bucket of value, with a larger value recorded so that max does not clamp it
+    * @param h
+    * @param value
+    * @return
+    */
+   private static long getBucketTop(LatencyHistogram h, long value) {
+      h.reset();
+      h.record(value);
+      h.record(h.getHighestTrackable());
+      return h.getValueAtPercentile(50);
+   }
+
+   public void setUp() {
+      uc = new UCtx();
+   }
+
+   public void testAboveHighestTrackable() {
+      LatencyHistogram h = new LatencyHistogram(uc, 1000, 4);
+      h.record(5000);
+      assertEquals(5000, h.getMax());
+      //counted in the last bucket
+      assertEquals(1023, h.getValueAtPercentile(100));
+      assertEquals(1, h.getTotalCount());
+   }
+
+   public void testAdd() {
+      LatencyHistogram a = new LatencyHistogram(uc);
+      LatencyHistogram b = new LatencyHistogram(uc);
+      a.record(10);
+      b.record(20);
+      b.record(30);
+      a.add(b);
+      assertEquals(3, a.getTotalCount());
+      assertEquals(10, a.getMin());
+      assertEquals(30, a.getMax());
+      assertEquals(20.0, a.getMean(), 0.0);
+      try {
+         a.add(new LatencyHistogram(uc, 1000, 4));
+         fail();
+      } catch (IllegalArgumentException e) {
+         //layouts differ
+      }
+   }
+
+   public void testBucketsDefault() {
+      LatencyHistogram h = new LatencyHistogram(uc);
+      //exact under 2^subBucketBits
+      assertEquals(0, getBucketTop(h, 0));
+      assertEquals(255, getBucketTop(h, 255));
+      //2 values per bucket in [256,512)
+      assertEquals(257, getBucketTop(h, 256));
+      assertEquals(257, getBucketTop(h, 257));
+      assertEquals(259, getBucketTop(h, 258));
+      assertEquals(511, getBucketTop(h, 511));
+      //4 values per bucket in [512,1024)
+      assertEquals(515, getBucketTop(h, 512));
+      assertEquals(1023, getBucketTop(h, 1020));
+      //8 values per bucket in [1024,2048)
+      assertEquals(1031, getBucketTop(h, 1024));
+   }
+
+   public void testBucketsSmall() {
+      //4 sub buckets, 2 per power of 2 above 4
+      LatencyHistogram h = new LatencyHistogram(uc, 1000, 2);
+      assertEquals(3, getBucketTop(h, 3));
+      assertEquals(5, getBucketTop(h, 4));
+      assertEquals(5, getBucketTop(h, 5));
+      assertEquals(7, getBucketTop(h, 6));
+      assertEquals(11, getBucketTop(h, 8));
+      assertEquals(15, getBucketTop(h, 12));
+      assertEquals(23, getBucketTop(h, 16));
+      assertEquals(31, getBucketTop(h, 31));
+   }
+
+   public void testBucketTopNeverAboveMax() {
+      LatencyHistogram h = new LatencyHistogram(uc);
+      h.record(256);
+      assertEquals(256, h.getValueAtPercentile(50));
+      assertEquals(256, h.getValueAtPercentile(100));
+   }
+
+   public void testEmpty() {
+      LatencyHistogram h = new LatencyHistogram(uc);
+      assertEquals(0, h.getValueAtPercentile(99));
+      assertEquals(0, h.getMin());
+      assertEquals(0, h.getMax());
+      assertEquals(0.0, h.getMean(), 0.0);
+   }
+
+   public void testIllegalLayout() {
+      try {
+         new LatencyHistogram(uc, 1000, 1);
+         fail();
+      } catch (IllegalArgumentException e) {
+         //too few sub buckets
+      }
+      try {
+         new LatencyHistogram(uc, 0, 8);
+         fail();
+      } catch (IllegalArgumentException e) {
+         //nothing trackable
+      }
+   }
+
+   public void testPercentiles() {
+      LatencyHistogram h = new LatencyHistogram(uc);
+      for (int i = 1; i <= 100; i++) {
+         h.record(i);
+      }
+      assertEquals(1, h.getValueAtPercentile(0));
+      assertEquals(50, h.getValueAtPercentile(50));
+      assertEquals(99, h.getValueAtPercentile(99));
+      assertEquals(100, h.getValueAtPercentile(100));
+   }
+
+   public void testNegativeCountedAsZero() {
+      LatencyHistogram h = new LatencyHistogram(uc);
+      h.record(-5);
+      assertEquals(0, h.getMin());
+      assertEquals(0, h.getValueAtPercentile(100));
+   }
+}
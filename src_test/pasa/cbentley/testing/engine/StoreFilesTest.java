@@ -0,0 +1,206 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Save and load round trips of {@link TestTimingStore}, {@link TestResultCache} and {@link TestCoverageIndex},
+ * and loading of corrupted files
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class StoreFilesTest extends TestCase {
+
+   private File dir;
+
+   private File file;
+
+   private static void writeFile(File file, String content) throws IOException {
+      Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+         w.write(content);
+      } finally {
+         w.close();
+      }
+   }
+
+   public void setUp() throws IOException {
+      dir = File.createTempFile("stores", "");
+      dir.delete();
+      dir.mkdir();
+      file = new File(dir, "sub/store.txt");
+   }
+
+   public void tearDown() {
+      File[] files = file.getParentFile().listFiles();
+      if (files != null) {
+         for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+         }
+      }
+      file.getParentFile().delete();
+      dir.delete();
+   }
+
+   private void assertNoTempFiles() {
+      String[] names = file.getParentFile().list();
+      assertEquals(Arrays.asList(names).toString(), 1, names.length);
+   }
+
+   public void testCoverageIndexCorrupted() throws IOException {
+      file.getParentFile().mkdirs();
+      String header = TestCoverageIndex.HEADER + "\n";
+      writeFile(file, header + "c a.X\nt a.T#t1 0\nt a.T#t2 7\nt a.T#t3 0\n");
+      TestCoverageIndex index = new TestCoverageIndex(file);
+      assertEquals(Arrays.asList("a.X"), index.getClasses("a.T#t1"));
+      assertNull(index.getClasses("a.T#t2"));
+      assertNull(index.getClasses("a.T#t3"));
+
+      writeFile(file, header + "c a.X\nt a.T#t1 zz\n");
+      assertEquals(0, new TestCoverageIndex(file).size());
+
+      writeFile(file, "#pasa.testing.coverage 0\nc a.X\nt a.T#t1 0\n");
+      assertEquals(0, new TestCoverageIndex(file).size());
+   }
+
+   public void testCoverageIndexRoundTrip() {
+      TestCoverageIndex index = new TestCoverageIndex(file);
+      assertEquals(0, index.size());
+      index.record("a.T#t1", Arrays.asList("a.X", "a.Y"));
+      index.record("a.T#t2", Arrays.asList("a.Y", "a.Z$1"));
+      index.record("a.T#t3", Arrays.asList("a.Old"));
+      //a.Old is no longer used and dropped
+      index.record("a.T#t3", Collections.<String> emptyList());
+      index.save();
+      assertNoTempFiles();
+
+      TestCoverageIndex copy = new TestCoverageIndex(file);
+      assertEquals(3, copy.size());
+      assertEquals(new HashSet<String>(Arrays.asList("a.X", "a.Y")), new HashSet<String>(copy.getClasses("a.T#t1")));
+      assertEquals(new HashSet<String>(Arrays.asList("a.Y", "a.Z$1")), new HashSet<String>(copy.getClasses("a.T#t2")));
+      assertEquals(0, copy.getClasses("a.T#t3").size());
+      assertNull(copy.getClasses("a.T#t4"));
+      assertTrue(copy.isAffected("a.T#t2", new HashSet<String>(Arrays.asList("a.Z"))));
+      assertFalse(copy.isAffected("a.T#t1", new HashSet<String>(Arrays.asList("a.Z"))));
+      assertTrue(copy.isAffected("a.T#t4", new HashSet<String>()));
+   }
+
+   public void testResultCacheCorrupted() throws IOException {
+      file.getParentFile().mkdirs();
+      String header = TestResultCache.HEADER + "\n";
+      writeFile(file, header + "a.T#t1 h1 -\nbroken\na.T#t2 h2 x bad%zzname\na.T#t3 h3 -\n");
+      TestResultCache cache = new TestResultCache(file, 10);
+      assertTrue(cache.isPassed("a.T#t1", "h1", getClass()));
+      assertFalse(cache.isPassed("a.T#t2", "h2", getClass()));
+      assertFalse(cache.isPassed("a.T#t3", "h3", getClass()));
+      assertEquals(1, cache.size());
+
+      writeFile(file, "garbage\na.T#t1 h1 -\n");
+      assertEquals(0, new TestResultCache(file, 10).size());
+   }
+
+   public void testResultCacheRoundTrip() {
+      TestResultCache cache = new TestResultCache(file, 10);
+      List<String> resources = new ArrayList<String>();
+      resources.add("StoreFilesTest.class");
+      resources.add("no such resource %+.txt");
+      cache.record("a.T#t1", "h1", getClass(), resources, true);
+      cache.record("a.T#t2", "h2", getClass(), Collections.<String> emptyList(), true);
+      cache.record("a.T#t3", "h3", getClass(), Collections.<String> emptyList(), true);
+      cache.record("a.T#t3", "h3", getClass(), Collections.<String> emptyList(), false);
+      cache.save();
+      assertNoTempFiles();
+
+      TestResultCache copy = new TestResultCache(file, 10);
+      assertEquals(2, copy.size());
+      assertTrue(copy.isPassed("a.T#t1", "h1", getClass()));
+      assertTrue(copy.isPassed("a.T#t2", "h2", getClass()));
+      assertFalse(copy.isPassed("a.T#t2", "changed", getClass()));
+      assertFalse(copy.isPassed("a.T#t3", "h3", getClass()));
+      assertEquals(2, copy.takeHits());
+      assertEquals(0, copy.takeHits());
+   }
+
+   public void testResultCacheMaxEntries() {
+      TestResultCache cache = new TestResultCache(file, 2);
+      for (int i = 0; i < 5; i++) {
+         cache.record("a.T#t" + i, "h", getClass(), Collections.<String> emptyList(), true);
+      }
+      cache.save();
+      TestResultCache copy = new TestResultCache(file, 2);
+      assertEquals(2, copy.size());
+      assertTrue(copy.isPassed("a.T#t4", "h", getClass()));
+      assertFalse(copy.isPassed("a.T#t0", "h", getClass()));
+   }
+
+   public void testTimingStoreCorrupted() throws IOException {
+      file.getParentFile().mkdirs();
+      String header = TestTimingStore.HEADER + "\n";
+      writeFile(file, header + "a.T#t1 10 0 0 3\nshort line\na.T#t2 x 0 0 3\na.T#t3 30 0 0 3\n");
+      TestTimingStore store = new TestTimingStore(file);
+      assertEquals(10, store.getMillis("a.T#t1"));
+      assertEquals(-1, store.getMillis("a.T#t2"));
+      assertEquals(-1, store.getMillis("a.T#t3"));
+
+      writeFile(file, "not a timing file\na.T#t1 10 0 0 3\n");
+      assertEquals(0, new TestTimingStore(file).size());
+   }
+
+   public void testTimingStoreRoundTrip() {
+      TestTimingStore store = new TestTimingStore(file);
+      assertEquals(0, store.size());
+      store.record("a.T#t1", 100, false);
+      store.record("a.T#t1", 50, false);
+      store.record("a.T#t2", 20, true);
+      store.record("a.U#t1", 7, false);
+      store.save();
+      assertNoTempFiles();
+
+      TestTimingStore copy = new TestTimingStore(file);
+      assertEquals(3, copy.size());
+      assertEquals(75, copy.getMillis("a.T#t1"));
+      assertEquals(20, copy.getMillis("a.T#t2"));
+      assertEquals(-1, copy.getMillis("a.T#t3"));
+      assertEquals(95, copy.getClassMillis("a.T"));
+      assertEquals(0, copy.getFailure("a.T#t1"));
+      assertTrue(copy.getFailure("a.T#t2") > 0);
+      assertEquals(copy.getFailure("a.T#t2"), copy.getClassFailure("a.T"));
+      assertEquals(0, copy.getClassFailure("a.U"));
+   }
+
+   public void testTimingStorePrunesUnseen() {
+      TestTimingStore store = new TestTimingStore(file);
+      store.record("a.T#old", 10, false);
+      store.save();
+      for (int i = 0; i < TestTimingStore.UNSEEN_RUNS_MAX; i++) {
+         store = new TestTimingStore(file);
+         store.record("a.T#new", 10, false);
+         store.save();
+      }
+      TestTimingStore copy = new TestTimingStore(file);
+      assertEquals(-1, copy.getMillis("a.T#old"));
+      assertEquals(10, copy.getMillis("a.T#new"));
+   }
+
+   public void testTimingStoreVersion1() throws IOException {
+      file.getParentFile().mkdirs();
+      writeFile(file, "#pasa.testing.timings 1\na.T#t1 10 0 0\n");
+      TestTimingStore store = new TestTimingStore(file);
+      assertEquals(10, store.getMillis("a.T#t1"));
+   }
+}
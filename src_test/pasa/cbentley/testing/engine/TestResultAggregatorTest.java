@@ -0,0 +1,135 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestListener;
+import junit.framework.TestResult;
+
+/**
+ * Tests {@link TestResultAggregator}
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestResultAggregatorTest extends TestCase {
+
+   /**
+    * Records the events seen by the master, in order
+    */
+   private static class EventRecorder implements TestListener {
+
+      final List<String> events = new ArrayList<String>();
+
+      public synchronized void addError(Test test, Throwable t) {
+         events.add("error " + test);
+      }
+
+      public synchronized void addFailure(Test test, AssertionFailedError t) {
+         events.add("failure " + test);
+      }
+
+      public synchronized void endTest(Test test) {
+         events.add("end " + test);
+      }
+
+      public synchronized void startTest(Test test) {
+         events.add("start " + test);
+      }
+   }
+
+   private static class NamedTest implements Test {
+
+      private final String name;
+
+      NamedTest(String name) {
+         this.name = name;
+      }
+
+      public int countTestCases() {
+         return 1;
+      }
+
+      public void run(TestResult result) {
+      }
+
+      public String toString() {
+         return name;
+      }
+   }
+
+   private static final int THREADS = 8;
+
+   private static final int TESTS   = 200;
+
+   public void testCounts() {
+      TestResult master = new TestResult();
+      TestResultAggregator agg = new TestResultAggregator(master);
+      Test t = new NamedTest("t");
+      agg.startTest(t);
+      agg.addFailure(t, new AssertionFailedError("f"));
+      agg.addError(t, new RuntimeException("e"));
+      agg.endTest(t);
+      assertEquals(1, agg.runCount());
+      assertEquals(1, master.runCount());
+      assertEquals(1, master.failureCount());
+      assertEquals(1, master.errorCount());
+   }
+
+   public void testEventsNotInterleaved() throws Exception {
+      final TestResult master = new TestResult();
+      EventRecorder recorder = new EventRecorder();
+      master.addListener(recorder);
+      Thread[] threads = new Thread[THREADS];
+      for (int i = 0; i < THREADS; i++) {
+         final int thread = i;
+         threads[i] = new Thread() {
+            public void run() {
+               TestResultAggregator agg = new TestResultAggregator(master);
+               for (int j = 0; j < TESTS; j++) {
+                  Test t = new NamedTest(thread + "-" + j);
+                  agg.startTest(t);
+                  agg.addFailure(t, new AssertionFailedError("f"));
+                  Thread.yield();
+                  agg.addError(t, new RuntimeException("e"));
+                  agg.endTest(t);
+               }
+            }
+         };
+      }
+      for (int i = 0; i < THREADS; i++) {
+         threads[i].start();
+      }
+      for (int i = 0; i < THREADS; i++) {
+         threads[i].join();
+      }
+      List<String> events = recorder.events;
+      assertEquals(THREADS * TESTS * 4, events.size());
+      for (int i = 0; i < events.size(); i += 4) {
+         String name = events.get(i).substring("start ".length());
+         assertEquals("start " + name, events.get(i));
+         assertEquals("error " + name, events.get(i + 1));
+         assertEquals("failure " + name, events.get(i + 2));
+         assertEquals("end " + name, events.get(i + 3));
+      }
+      assertEquals(THREADS * TESTS, master.runCount());
+      assertEquals(THREADS * TESTS, master.failureCount());
+      assertEquals(THREADS * TESTS, master.errorCount());
+   }
+
+   public void testStopForwardedToMaster() {
+      TestResult master = new TestResult();
+      TestResultAggregator agg = new TestResultAggregator(master);
+      assertFalse(agg.shouldStop());
+      agg.stop();
+      assertTrue(master.shouldStop());
+      assertTrue(agg.shouldStop());
+   }
+}
@@ -0,0 +1,185 @@
+/*
+ * (c) 2018-2020 Charles-Philip Bentley
+ * This code is licensed under MIT license (see LICENSE.txt for details)
+ */
+package pasa.cbentley.testing.engine;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+
+/**
+ * Tests the line format of {@link TestRunRequest} and its shard partitions
+ * 
+ * @author Charles Bentley
+ *
+ */
+public class TestRunRequestTest extends TestCase {
+
+   /**
+    * Test class partitioned by the shard tests. Never run
+    */
+   public static class Sample extends TestCase {
+
+      public void testA() {
+      }
+
+      public void testB() {
+      }
+
+      public void testC() {
+      }
+
+      public void testD() {
+      }
+
+      public void testE() {
+      }
+   }
+
+   private File timingFile;
+
+   private static TestRunRequest read(String str) throws IOException {
+      return TestRunRequest.read(new BufferedReader(new StringReader(str)));
+   }
+
+   private static String write(TestRunRequest req) throws IOException {
+      StringWriter sw = new StringWriter();
+      req.write(sw);
+      return sw.toString();
+   }
+
+   /**
+    * 
+    * @param req
+    * @return names of the test methods of the suite of req
+    */
+   private List<String> getShard(TestRunRequest req) {
+      TestSuiteBentley suite = req.createSuite(req.createTestCtx(), getClass().getClassLoader());
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; i < suite.testCount(); i++) {
+         Test t = suite.testAt(i);
+         assertTrue(t.toString(), t instanceof Sample);
+         names.add(((TestCase) t).getName());
+      }
+      return names;
+   }
+
+   private TestRunRequest createShardRequest(int index, int count) {
+      TestRunRequest req = new TestRunRequest();
+      req.addTest(Sample.class.getName());
+      req.setShard(index, count);
+      if (timingFile != null) {
+         req.setTimingFile(timingFile.getPath());
+      }
+      return req;
+   }
+
+   public void tearDown() {
+      if (timingFile != null) {
+         timingFile.delete();
+         timingFile = null;
+      }
+   }
+
+   public void testBadHeader() {
+      try {
+         read("#pasa.testing.run 0\nend\n");
+         fail();
+      } catch (IOException e) {
+         //expected
+      }
+   }
+
+   public void testBadShard() {
+      try {
+         new TestRunRequest().setShard(2, 2);
+         fail();
+      } catch (IllegalArgumentException e) {
+         //expected
+      }
+   }
+
+   public void testMissingEnd() {
+      try {
+         read(ITechTestRun.HEADER + "\ntest a.B\n");
+         fail();
+      } catch (IOException e) {
+         //expected
+      }
+   }
+
+   public void testRoundTrip() throws IOException {
+      TestRunRequest req = new TestRunRequest();
+      req.setToken("secret");
+      req.addTest("a.B");
+      req.addTest("a.C#testX");
+      req.setTestFlags(5);
+      req.setEngineFlags(9);
+      req.setTimeoutMillis(1234);
+      req.setClassPath("bin" + File.pathSeparator + "lib/x.jar");
+      req.setShard(1, 3);
+      req.setTimingFile("timings.txt");
+      String str = write(req);
+      TestRunRequest copy = read(str);
+      assertEquals("secret", copy.getToken());
+      assertEquals("bin" + File.pathSeparator + "lib/x.jar", copy.getClassPath());
+      assertEquals("timings.txt", copy.getTimingFile());
+      assertEquals(str, write(copy));
+   }
+
+   public void testRoundTripEmpty() throws IOException {
+      String str = write(new TestRunRequest());
+      assertEquals(ITechTestRun.HEADER + "\n" + ITechTestRun.CMD_END + "\n", str);
+      TestRunRequest copy = read(str);
+      assertNull(copy.getToken());
+      assertNull(copy.getClassPath());
+      assertEquals(str, write(copy));
+   }
+
+   public void testShardsDisjointAndComplete() {
+      for (int count = 2; count <= 6; count++) {
+         Set<String> all = new HashSet<String>();
+         int total = 0;
+         for (int i = 0; i < count; i++) {
+            List<String> shard = getShard(createShardRequest(i, count));
+            total += shard.size();
+            all.addAll(shard);
+         }
+         assertEquals("count " + count, 5, total);
+         assertEquals("count " + count, 5, all.size());
+      }
+   }
+
+   public void testShardsBalancedByTimings() throws IOException {
+      timingFile = File.createTempFile("timings", ".txt");
+      timingFile.delete();
+      TestTimingStore store = new TestTimingStore(timingFile);
+      String prefix = Sample.class.getName() + "#";
+      store.record(prefix + "testA", 100, false);
+      store.record(prefix + "testB", 60, false);
+      store.record(prefix + "testC", 50, false);
+      store.record(prefix + "testD", 10, false);
+      store.record(prefix + "testE", 5, false);
+      store.save();
+      //longest first to the least loaded: A, B, C, D, E
+      List<String> shard0 = getShard(createShardRequest(0, 2));
+      List<String> shard1 = getShard(createShardRequest(1, 2));
+      assertEquals(3, shard0.size());
+      assertTrue(shard0.contains("testA"));
+      assertTrue(shard0.contains("testD"));
+      assertTrue(shard0.contains("testE"));
+      assertEquals(2, shard1.size());
+      assertTrue(shard1.contains("testB"));
+      assertTrue(shard1.contains("testC"));
+   }
+}